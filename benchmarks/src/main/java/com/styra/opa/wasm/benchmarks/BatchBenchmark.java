@@ -0,0 +1,84 @@
+package com.styra.opa.wasm.benchmarks;
+
+import com.styra.opa.wasm.OpaPolicy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Per-item cost of {@link OpaPolicy#evaluateBatch(List)} compared to calling {@link
+ * OpaPolicy#evaluate(String)} in a loop, and of {@link OpaPolicy#evaluateEachToBytes(Iterator,
+ * Consumer)} which skips the decoding of the results.
+ *
+ * <pre>{@code
+ * mvn -B -Pbenchmarks install -DskipTests
+ * java -jar benchmarks/target/benchmarks.jar BatchBenchmark
+ * }</pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchBenchmark {
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"true", "false"})
+    public boolean fastEvaluation;
+
+    private OpaPolicy policy;
+    private List<String> inputs;
+
+    @Setup
+    public void setup() {
+        var builder =
+                OpaPolicy.builder()
+                        .withPolicy(BatchBenchmark.class.getResourceAsStream("/demo-policy.wasm"));
+        if (!fastEvaluation) {
+            builder.disableFastEvaluation();
+        }
+        policy = builder.build();
+        policy.data("{ \"role\" : { \"alice\" : \"admin\", \"bob\" : \"user\" } }");
+
+        inputs = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            inputs.add("{\"user\": \"" + ((i % 2 == 0) ? "alice" : "bob") + "\"}");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void loop(Blackhole bh) {
+        for (var input : inputs) {
+            bh.consume(policy.evaluate(input));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void batch(Blackhole bh) {
+        bh.consume(policy.evaluateBatch(inputs));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void batchBytes(Blackhole bh) {
+        policy.evaluateEachToBytes(inputs.iterator(), bh::consume);
+    }
+}
@@ -0,0 +1,73 @@
+package com.styra.opa.wasm.benchmarks;
+
+import com.styra.opa.wasm.OpaPolicy;
+import com.styra.opa.wasm.OpaPolicyPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link OpaPolicyPool} loans with all the available cores borrowing at once, with
+ * a single idle queue compared to one stripe per core.
+ *
+ * <pre>{@code
+ * mvn -B -Pbenchmarks install -DskipTests
+ * java -jar benchmarks/target/benchmarks.jar PoolContentionBenchmark
+ * }</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(Threads.MAX)
+@Fork(1)
+public class PoolContentionBenchmark {
+    private static final String INPUT = "{\"user\": \"alice\"}";
+
+    // 0 is one stripe per core
+    @Param({"1", "0"})
+    public int stripes;
+
+    private OpaPolicyPool pool;
+
+    @Setup
+    public void setup() throws InterruptedException {
+        var cores = Runtime.getRuntime().availableProcessors();
+        var module =
+                OpaPolicy.builder()
+                        .withPolicy(
+                                PoolContentionBenchmark.class.getResourceAsStream(
+                                        "/demo-policy.wasm"))
+                        .buildModule();
+        pool =
+                OpaPolicyPool.builder(module::instantiate, cores)
+                        .withStripes((stripes == 0) ? cores : stripes)
+                        .build();
+        pool.data("{ \"role\" : { \"alice\" : \"admin\" } }");
+        pool.prewarm(cores).join();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Benchmark
+    public String borrowAndEvaluate() throws InterruptedException {
+        try (var loan = pool.borrow()) {
+            return loan.policy().evaluate(INPUT);
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package com.styra.opa.wasm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import run.endive.compiler.MachineFactoryCompiler;
+import run.endive.runtime.Instance;
+import run.endive.runtime.Machine;
+import run.endive.wasm.WasmModule;
+
+/**
+ * Opt-in on-disk cache of the classes generated by the compiler, so that restarting the JVM doesn't
+ * compile the same policies again.
+ *
+ * <p>Entries are keyed by the SHA-256 of the Wasm binary and stored in a sub-directory named after
+ * the hashes of the jars of this library and of the Endive compiler: the directories of other
+ * builds are dropped when the cache is created, once they haven't been used for a week, as they
+ * may belong to another application sharing the same root. Beyond {@code maxEntries} the least
+ * recently used entries are evicted.
+ *
+ * <p>Each entry carries the SHA-256 of its content and of its key, entries that don't match, e.g.
+ * corrupted or copied under another key, are compiled again instead of being loaded.
+ *
+ * <pre>{@code
+ * var cache = CompilerCache.create(Path.of("/var/cache/opa-policies"));
+ * var policy = OpaPolicy.builder().withPolicy(policyBytes).withCompilerCache(cache).build();
+ * }</pre>
+ *
+ * <p>The cache is best effort: any failure reading or writing an entry falls back to compiling
+ * the module. The public compiler API doesn't hand out the generated classes, they are collected
+ * through the compiler internals looked up reflectively: when those aren't available the modules
+ * are compiled without being cached.
+ */
+public final class CompilerCache {
+    private static final int DEFAULT_MAX_ENTRIES = 256;
+    private static final String CLASS_NAME_PREFIX = "com.styra.opa.wasm.compiled.Policy_";
+    private static final String ENTRY_SUFFIX = ".classes";
+    private static final int DIGEST_LENGTH = 32;
+    // other versions may be in use by another application sharing the root
+    private static final Duration STALE_AFTER = Duration.ofDays(7);
+
+    private final Path directory;
+    private final int maxEntries;
+
+    private CompilerCache(Path directory, int maxEntries) {
+        this.directory = directory;
+        this.maxEntries = maxEntries;
+    }
+
+    public static CompilerCache create(Path root) {
+        return create(root, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Creates a cache in the {@code root} directory holding at most {@code maxEntries} compiled
+     * policies.
+     */
+    public static CompilerCache create(Path root, int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive, got: " + maxEntries);
+        }
+        var version = Version.NAME;
+        var directory = root.resolve(version);
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(
+                    "Cannot create the cache directory: " + directory, e);
+        }
+
+        // marks the version as in use for the other applications sharing the root
+        touch(directory);
+        var staleBefore = System.currentTimeMillis() - STALE_AFTER.toMillis();
+        try (Stream<Path> versions = Files.list(root)) {
+            for (var stale : versions.collect(Collectors.toList())) {
+                var name = stale.getFileName().toString();
+                if (Files.isDirectory(stale)
+                        && name.startsWith("opa-")
+                        && name.contains("_endive-")
+                        && !name.equals(version)
+                        && lastUsed(stale) < staleBefore) {
+                    deleteRecursively(stale);
+                }
+            }
+        } catch (IOException e) {
+            // best effort
+        }
+        return new CompilerCache(directory, maxEntries);
+    }
+
+    /** The directory holding the entries of the current version. */
+    public Path directory() {
+        return directory;
+    }
+
+    /**
+     * Returns the machine factory of the module, loading the classes previously generated for the
+     * same binary or compiling and storing them.
+     */
+    Function<Instance, Machine> machineFactory(WasmModule module, byte[] wasm) {
+        var key = sha256(wasm);
+        var entry = directory.resolve(key + ENTRY_SUFFIX);
+
+        var classes = read(entry, key);
+        if (classes == null) {
+            classes = InternalCompiler.compile(module, CLASS_NAME_PREFIX + key);
+            if (classes == null) {
+                return MachineFactoryCompiler.builder(module)
+                        .withClassName(CLASS_NAME_PREFIX + key)
+                        .compile();
+            }
+            write(entry, key, classes);
+            evict();
+        } else {
+            touch(entry);
+        }
+        return load(classes);
+    }
+
+    private static Function<Instance, Machine> load(CompiledClasses classes) {
+        var loader = new CompiledClassLoader(classes.bytes);
+        Constructor<?> constructor;
+        try {
+            constructor = loader.loadClass(classes.mainClassName).getConstructor(Instance.class);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Failed to load " + classes.mainClassName, e);
+        }
+        return instance -> {
+            try {
+                return (Machine) constructor.newInstance(instance);
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException("Failed to instantiate " + classes.mainClassName, e);
+            }
+        };
+    }
+
+    private static CompiledClasses read(Path entry, String key) {
+        if (!Files.exists(entry)) {
+            return null;
+        }
+        try {
+            var content = Files.readAllBytes(entry);
+            if (content.length < DIGEST_LENGTH) {
+                throw new IOException("Truncated entry: " + entry);
+            }
+            var payload = Arrays.copyOfRange(content, DIGEST_LENGTH, content.length);
+            var expected = Arrays.copyOf(content, DIGEST_LENGTH);
+            if (!MessageDigest.isEqual(expected, digest(key, payload))) {
+                throw new IOException("Digest mismatch: " + entry);
+            }
+            return parse(payload);
+        } catch (IOException | RuntimeException e) {
+            // corrupted, e.g. truncated, it's going to be compiled again
+            deleteQuietly(entry);
+            return null;
+        }
+    }
+
+    private static CompiledClasses parse(byte[] payload) throws IOException {
+        try (var in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            var mainClassName = in.readUTF();
+            var count = in.readInt();
+            var bytes = new HashMap<String, byte[]>();
+            for (int i = 0; i < count; i++) {
+                var name = in.readUTF();
+                var clazz = new byte[in.readInt()];
+                in.readFully(clazz);
+                bytes.put(name, clazz);
+            }
+            return new CompiledClasses(mainClassName, bytes);
+        }
+    }
+
+    // written aside and moved in place, concurrent readers never see partial entries
+    private void write(Path entry, String key, CompiledClasses classes) {
+        Path tmp = null;
+        try {
+            var payload = new ByteArrayOutputStream();
+            try (var out = new DataOutputStream(payload)) {
+                out.writeUTF(classes.mainClassName);
+                out.writeInt(classes.bytes.size());
+                for (var clazz : classes.bytes.entrySet()) {
+                    out.writeUTF(clazz.getKey());
+                    out.writeInt(clazz.getValue().length);
+                    out.write(clazz.getValue());
+                }
+            }
+            var content = payload.toByteArray();
+            tmp = Files.createTempFile(directory, entry.getFileName().toString(), ".tmp");
+            try (var out = Files.newOutputStream(tmp)) {
+                out.write(digest(key, content));
+                out.write(content);
+            }
+            Files.move(
+                    tmp,
+                    entry,
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            if (tmp != null) {
+                deleteQuietly(tmp);
+            }
+        }
+    }
+
+    // binds the content to the module it has been compiled from
+    private static byte[] digest(String key, byte[] payload) {
+        var digest = sha256();
+        digest.update(key.getBytes(StandardCharsets.UTF_8));
+        digest.update(payload);
+        return digest.digest();
+    }
+
+    // the most recent use of a version directory, entries are touched when loaded
+    private static long lastUsed(Path version) throws IOException {
+        try (Stream<Path> walk = Files.walk(version)) {
+            var lastUsed = 0L;
+            for (var p : walk.collect(Collectors.toList())) {
+                try {
+                    lastUsed = Math.max(lastUsed, Files.getLastModifiedTime(p).toMillis());
+                } catch (IOException e) {
+                    // deleted meanwhile
+                }
+            }
+            return lastUsed;
+        }
+    }
+
+    private static void touch(Path entry) {
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // best effort
+        }
+    }
+
+    private void evict() {
+        List<Path> entries;
+        try (Stream<Path> files = Files.list(directory)) {
+            entries =
+                    files.filter(f -> f.getFileName().toString().endsWith(ENTRY_SUFFIX))
+                            .collect(Collectors.toCollection(ArrayList::new));
+        } catch (IOException e) {
+            return;
+        }
+        if (entries.size() <= maxEntries) {
+            return;
+        }
+
+        var lastModified = new HashMap<Path, FileTime>();
+        for (var entry : entries) {
+            try {
+                lastModified.put(entry, Files.getLastModifiedTime(entry));
+            } catch (IOException e) {
+                lastModified.put(entry, FileTime.fromMillis(0));
+            }
+        }
+        entries.sort(Comparator.comparing(lastModified::get));
+        for (var entry : entries.subList(0, entries.size() - maxEntries)) {
+            deleteQuietly(entry);
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (var p : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                deleteQuietly(p);
+            }
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // best effort
+        }
+    }
+
+    static String sha256(byte[] bytes) {
+        return hex(sha256().digest(bytes));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        var hex = new StringBuilder(digest.length * 2);
+        for (var b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    // the name of the directory of the current build, computed once
+    private static final class Version {
+        private static final String NAME =
+                "opa-"
+                        + hashOf(CompilerCache.class)
+                        + "_endive-"
+                        + hashOf(MachineFactoryCompiler.class);
+
+        // the manifests don't carry a version, and snapshots keep the same one across builds
+        private static String hashOf(Class<?> clazz) {
+            var digest = sha256();
+            try {
+                var source = clazz.getProtectionDomain().getCodeSource();
+                var location = (source == null) ? null : Paths.get(source.getLocation().toURI());
+                if (location != null && Files.isRegularFile(location)) {
+                    // the whole jar
+                    try (var in = Files.newInputStream(location)) {
+                        update(digest, in);
+                    }
+                } else {
+                    // e.g. a directory of classes, only the class itself
+                    try (var in = clazz.getResourceAsStream(clazz.getSimpleName() + ".class")) {
+                        if (in == null) {
+                            return "unknown";
+                        }
+                        update(digest, in);
+                    }
+                }
+            } catch (IOException | URISyntaxException | RuntimeException e) {
+                return "unknown";
+            }
+            return hex(digest.digest()).substring(0, 16);
+        }
+
+        private static void update(MessageDigest digest, InputStream in) throws IOException {
+            var buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+    }
+
+    // the class collector of the compiler isn't part of its public API, it's looked up once
+    private static final class InternalCompiler {
+        private static final Method BUILDER;
+        private static final Method WITH_CLASS_NAME;
+        private static final Method BUILD;
+        private static final Method COMPILE;
+        private static final Method COLLECTOR;
+        private static final Method MAIN_CLASS_NAME;
+        private static final Method CLASS_BYTES;
+
+        static {
+            Method[] methods;
+            try {
+                var loader = MachineFactoryCompiler.class.getClassLoader();
+                var compiler =
+                        Class.forName("run.endive.compiler.internal.Compiler", false, loader);
+                var builder = compiler.getMethod("builder", WasmModule.class);
+                var builderClass = builder.getReturnType();
+                var compile = compiler.getMethod("compile");
+                var collector = compile.getReturnType().getMethod("collector");
+                var collectorClass = collector.getReturnType();
+                methods =
+                        new Method[] {
+                            builder,
+                            builderClass.getMethod("withClassName", String.class),
+                            builderClass.getMethod("build"),
+                            compile,
+                            collector,
+                            collectorClass.getMethod("mainClassName"),
+                            collectorClass.getMethod("classBytes")
+                        };
+            } catch (ReflectiveOperationException | LinkageError e) {
+                methods = new Method[7];
+            }
+            BUILDER = methods[0];
+            WITH_CLASS_NAME = methods[1];
+            BUILD = methods[2];
+            COMPILE = methods[3];
+            COLLECTOR = methods[4];
+            MAIN_CLASS_NAME = methods[5];
+            CLASS_BYTES = methods[6];
+        }
+
+        private InternalCompiler() {}
+
+        // null when the internals have changed, the module is then compiled without caching
+        @SuppressWarnings("unchecked")
+        static CompiledClasses compile(WasmModule module, String className) {
+            if (BUILDER == null) {
+                return null;
+            }
+            try {
+                var builder = WITH_CLASS_NAME.invoke(BUILDER.invoke(null, module), className);
+                var collector = COLLECTOR.invoke(COMPILE.invoke(BUILD.invoke(builder)));
+                return new CompiledClasses(
+                        (String) MAIN_CLASS_NAME.invoke(collector),
+                        (Map<String, byte[]>) CLASS_BYTES.invoke(collector));
+            } catch (IllegalAccessException | ClassCastException e) {
+                return null;
+            } catch (InvocationTargetException e) {
+                // a compilation failure
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    private static final class CompiledClasses {
+        private final String mainClassName;
+        private final Map<String, byte[]> bytes;
+
+        private CompiledClasses(String mainClassName, Map<String, byte[]> bytes) {
+            this.mainClassName = mainClassName;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final class CompiledClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classes;
+
+        private CompiledClassLoader(Map<String, byte[]> classes) {
+            super(CompilerCache.class.getClassLoader());
+            this.classes = classes;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            var bytes = classes.get(name);
+            if (bytes == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.styra.opa.wasm;
+
+/**
+ * An entrypoint of a policy resolved ahead of time.
+ *
+ * <p>Obtained through {@link OpaPolicy#entrypointHandle(String)}, it can be stored and reused with
+ * {@link OpaPolicy#entrypoint(EntrypointHandle)} on any instance of the same policy module, so that
+ * selecting the entrypoint doesn't need any lookup.
+ */
+public final class EntrypointHandle {
+    private final String name;
+    private final int id;
+
+    EntrypointHandle(String name, int id) {
+        this.name = name;
+        this.id = id;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return "EntrypointHandle{name=" + name + ", id=" + id + "}";
+    }
+}
@@ -0,0 +1,360 @@
+package com.styra.opa.wasm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The publisher returned by OpaPolicyPool.evaluate(Flow.Publisher): every subscriber gets its
+// own subscription to the inputs, evaluated in batches on pooled instances.
+//
+// The inputs are requested "parallelism * batchSize" at a time and more are requested as the
+// results are emitted, so that the buffered inputs and results stay bounded whatever the demand
+// of the subscriber. Inputs are batched when all the parallel slots are busy: an input arriving
+// while a slot is free is evaluated right away, under load the batches grow up to "batchSize".
+//
+// All the signals to the subscriber are emitted by the drain loop, run by a single thread at a
+// time: the one that increments "wip" from 0.
+final class EvaluationPublisher implements Flow.Publisher<String> {
+    private static final Flow.Subscription NO_SUBSCRIPTION =
+            new Flow.Subscription() {
+                @Override
+                public void request(long n) {}
+
+                @Override
+                public void cancel() {}
+            };
+
+    private final OpaPolicyPool pool;
+    private final Flow.Publisher<?> inputs;
+    private final OpaPolicyPool.StreamOptions options;
+
+    EvaluationPublisher(
+            OpaPolicyPool pool, Flow.Publisher<?> inputs, OpaPolicyPool.StreamOptions options) {
+        this.pool = pool;
+        this.inputs = inputs;
+        this.options = options;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super String> subscriber) {
+        Objects.requireNonNull(subscriber);
+        var entrypoints = pool.entrypoints();
+        if (options.entrypoint() != null
+                && entrypoints != null
+                && !entrypoints.containsKey(options.entrypoint())) {
+            // neither the inputs nor the pool are touched
+            subscriber.onSubscribe(NO_SUBSCRIPTION);
+            subscriber.onError(unknownEntrypoint(options.entrypoint()));
+            return;
+        }
+        var pipeline = new Pipeline(pool, options, subscriber);
+        subscriber.onSubscribe(pipeline);
+        inputs.subscribe(pipeline);
+    }
+
+    private static final class Pipeline implements Flow.Subscriber<Object>, Flow.Subscription {
+        private final OpaPolicyPool pool;
+        private final OpaPolicyPool.StreamOptions options;
+        private final Flow.Subscriber<? super String> downstream;
+        private final int prefetch;
+
+        private final ConcurrentLinkedQueue<Object> inputs = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Batch> completed = new ConcurrentLinkedQueue<>();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        // the borrows waiting for an instance, cancelled with the subscription
+        private final Set<CompletableFuture<OpaPolicyPool.Loan>> borrows =
+                ConcurrentHashMap.newKeySet();
+        private volatile Flow.Subscription upstream;
+        private volatile boolean upstreamDone;
+        private volatile Throwable upstreamError;
+        private volatile boolean cancelled;
+
+        // owned by the drain loop
+        // ordered: the batches in flight or not fully emitted, in the order of their inputs
+        // unordered: the completed batches not fully emitted
+        private final ArrayDeque<Batch> batches = new ArrayDeque<>();
+        private int inFlight;
+        private long consumed;
+        private boolean done;
+
+        private Pipeline(
+                OpaPolicyPool pool,
+                OpaPolicyPool.StreamOptions options,
+                Flow.Subscriber<? super String> downstream) {
+            this.pool = pool;
+            this.options = options;
+            this.downstream = downstream;
+            this.prefetch = options.parallelism(pool) * options.batchSize();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            if (upstream != null || cancelled) {
+                subscription.cancel();
+                return;
+            }
+            upstream = subscription;
+            subscription.request(prefetch);
+        }
+
+        @Override
+        public void onNext(Object input) {
+            inputs.offer(Objects.requireNonNull(input));
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            upstreamError = error;
+            upstreamDone = true;
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            upstreamDone = true;
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                upstreamError =
+                        new IllegalArgumentException("The demand must be positive, got: " + n);
+                upstreamDone = true;
+            } else {
+                requested.getAndAccumulate(
+                        n, (current, add) -> (current + add < 0) ? Long.MAX_VALUE : current + add);
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            var subscription = upstream;
+            if (subscription != null) {
+                subscription.cancel();
+            }
+            cancelBorrows();
+            drain();
+        }
+
+        // the waiters leave the pool queue, a loan already handed over is closed
+        private void cancelBorrows() {
+            for (var borrow : borrows) {
+                borrow.cancel(false);
+            }
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            var missed = 1;
+            while (true) {
+                if (done) {
+                    return;
+                }
+                if (cancelled) {
+                    terminate();
+                    return;
+                }
+
+                Batch batch;
+                while ((batch = completed.poll()) != null) {
+                    inFlight--;
+                    if (batch.error != null) {
+                        fail(batch.error);
+                        return;
+                    }
+                    if (!options.ordered()) {
+                        batches.offer(batch);
+                    }
+                }
+                if (upstreamError != null) {
+                    fail(upstreamError);
+                    return;
+                }
+
+                emit();
+                if (done) {
+                    return;
+                }
+                dispatch();
+
+                if (upstreamDone && inputs.isEmpty() && inFlight == 0 && batches.isEmpty()) {
+                    done = true;
+                    downstream.onComplete();
+                    return;
+                }
+                if (consumed > 0 && upstream != null && !upstreamDone) {
+                    upstream.request(consumed);
+                    consumed = 0;
+                }
+
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void emit() {
+            var demand = requested.get();
+            long emitted = 0;
+            while (emitted < demand && !cancelled) {
+                var batch = batches.peek();
+                if (batch == null || batch.results == null) {
+                    break;
+                }
+                try {
+                    downstream.onNext(batch.results.get(batch.next++));
+                } catch (RuntimeException | Error e) {
+                    // a broken subscriber, the subscription is considered cancelled
+                    cancelled = true;
+                    var subscription = upstream;
+                    if (subscription != null) {
+                        subscription.cancel();
+                    }
+                    cancelBorrows();
+                    terminate();
+                    return;
+                }
+                emitted++;
+                if (batch.next == batch.results.size()) {
+                    batches.poll();
+                }
+            }
+            if (emitted > 0) {
+                requested.addAndGet(-emitted);
+                consumed += emitted;
+            }
+        }
+
+        private void dispatch() {
+            while (inFlight < options.parallelism(pool) && !inputs.isEmpty() && !cancelled) {
+                var items = new ArrayList<Object>(Math.min(options.batchSize(), inputs.size()));
+                Object input;
+                while (items.size() < options.batchSize() && (input = inputs.poll()) != null) {
+                    items.add(input);
+                }
+                var batch = new Batch(items);
+                inFlight++;
+                if (options.ordered()) {
+                    batches.offer(batch);
+                }
+                evaluate(batch);
+            }
+        }
+
+        private void evaluate(Batch batch) {
+            var borrow = pool.borrowAsync();
+            borrows.add(borrow);
+            if (cancelled) {
+                // cancel() may have missed it
+                borrow.cancel(false);
+            }
+            borrow.whenComplete(
+                    (loan, error) -> {
+                        borrows.remove(borrow);
+                        if (error != null) {
+                            complete(batch, null, error);
+                            return;
+                        }
+                        try {
+                            options.executor(pool).execute(() -> run(loan, batch));
+                        } catch (RejectedExecutionException e) {
+                            loan.close();
+                            complete(batch, null, e);
+                        }
+                    });
+        }
+
+        private void run(OpaPolicyPool.Loan loan, Batch batch) {
+            if (cancelled) {
+                loan.close();
+                complete(batch, null, null);
+                return;
+            }
+            List<String> results = null;
+            var unknown = false;
+            try {
+                var policy = loan.policy();
+                if (options.entrypoint() != null) {
+                    var id = policy.entrypoints().get(options.entrypoint());
+                    unknown = (id == null);
+                    if (!unknown) {
+                        policy.entrypoint(id);
+                    }
+                }
+                if (!unknown) {
+                    results = policy.evaluateBatch(batch.inputs);
+                }
+            } catch (RuntimeException | Error e) {
+                // the instance may be left in a bad state
+                loan.discard();
+                complete(batch, null, e);
+                return;
+            }
+            // an unknown entrypoint is a caller error, the instance is fine
+            loan.close();
+            complete(batch, results, unknown ? unknownEntrypoint(options.entrypoint()) : null);
+        }
+
+        private void complete(Batch batch, List<String> results, Throwable error) {
+            batch.error = error;
+            batch.results = results;
+            completed.offer(batch);
+            drain();
+        }
+
+        private void fail(Throwable error) {
+            done = true;
+            var subscription = upstream;
+            if (subscription != null) {
+                subscription.cancel();
+            }
+            clear();
+            downstream.onError(error);
+        }
+
+        private void terminate() {
+            done = true;
+            clear();
+        }
+
+        private void clear() {
+            inputs.clear();
+            batches.clear();
+        }
+    }
+
+    private static IllegalArgumentException unknownEntrypoint(String entrypoint) {
+        return new IllegalArgumentException(
+                "Entrypoint " + entrypoint + " is not defined in this policy");
+    }
+
+    private static final class Batch {
+        private final List<Object> inputs;
+        // set before the batch is queued in "completed"
+        private volatile List<String> results;
+        private volatile Throwable error;
+        // the next result to emit, owned by the drain loop
+        private int next;
+
+        private Batch(List<Object> inputs) {
+            this.inputs = inputs;
+        }
+    }
+}
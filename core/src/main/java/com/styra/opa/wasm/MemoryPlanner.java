@@ -0,0 +1,110 @@
+package com.styra.opa.wasm;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import run.endive.runtime.Memory;
+
+/**
+ * Sizes the linear memory of {@link OpaPolicy} instances from what has been observed so far.
+ *
+ * <p>The planner records how much of the guest heap each phase uses: loading the data, parsing the
+ * input and evaluating, the last two above the end of the data. Before each phase, the memory is
+ * grown in a single step to the largest use seen for that phase plus a configurable headroom,
+ * instead of letting the guest grow it page by page; {@link #recommendedInitialPages()} gives the
+ * size new instances should start with.
+ *
+ * <p>A planner is thread-safe and is meant to be shared by all the instances of the same policy,
+ * e.g. in the factory of an {@link OpaPolicyPool}:
+ *
+ * <pre>{@code
+ * var planner = MemoryPlanner.create();
+ * var pool = OpaPolicyPool.create(
+ *         () -> OpaPolicy.builder().withPolicy(policyBytes).withMemoryPlanner(planner).build(),
+ *         4);
+ * }</pre>
+ */
+public final class MemoryPlanner {
+    public enum Phase {
+        DATA,
+        INPUT,
+        EVAL
+    }
+
+    private static final double DEFAULT_HEADROOM = 0.25;
+
+    private final double headroom;
+    private final AtomicInteger[] highWaterMarks;
+    // the highest heap address observed, whatever the phase
+    private final AtomicInteger peak = new AtomicInteger();
+
+    private MemoryPlanner(double headroom) {
+        this.headroom = headroom;
+        this.highWaterMarks = new AtomicInteger[Phase.values().length];
+        for (int i = 0; i < highWaterMarks.length; i++) {
+            highWaterMarks[i] = new AtomicInteger();
+        }
+    }
+
+    public static MemoryPlanner create() {
+        return new MemoryPlanner(DEFAULT_HEADROOM);
+    }
+
+    /**
+     * @param headroom extra memory to reserve on top of the high-water marks, as a fraction of
+     *     them, e.g. {@code 0.25} reserves 25% more than a phase has ever used
+     */
+    public static MemoryPlanner create(double headroom) {
+        if (!(headroom >= 0)) {
+            throw new IllegalArgumentException("headroom must be non-negative, got: " + headroom);
+        }
+        return new MemoryPlanner(headroom);
+    }
+
+    public double headroom() {
+        return headroom;
+    }
+
+    /**
+     * Returns the most heap the phase used, in bytes, above where it started: the heap base for
+     * {@link Phase#DATA}, the end of the data for {@link Phase#INPUT} and {@link Phase#EVAL}.
+     */
+    public int highWaterMark(Phase phase) {
+        return highWaterMarks[phase.ordinal()].get();
+    }
+
+    /** Returns the number of pages new instances should start with to avoid growing under load. */
+    public int recommendedInitialPages() {
+        var max = 0;
+        for (var highWaterMark : highWaterMarks) {
+            max = Math.max(max, highWaterMark.get());
+        }
+        return pages(peak.get() + headroom(max));
+    }
+
+    // "heapPtr" is the end of the heap after the phase, which started at "base"
+    void record(Phase phase, int base, int heapPtr) {
+        max(highWaterMarks[phase.ordinal()], heapPtr - base);
+        max(peak, heapPtr);
+    }
+
+    // the marks rarely move, avoid writing to the shared counters
+    private static void max(AtomicInteger mark, int value) {
+        if (value > mark.get()) {
+            mark.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    // the number of pages to hold "size" bytes at the beginning of "phase", starting at "base":
+    // the headroom only applies to what the phase itself uses, not to the data below it
+    int plannedPages(Phase phase, int base, int size) {
+        var used = Math.max(size - base, highWaterMark(phase));
+        return pages((long) base + used + headroom(used));
+    }
+
+    private long headroom(int size) {
+        return (long) Math.ceil(size * headroom);
+    }
+
+    static int pages(long size) {
+        return (int) ((size + Memory.PAGE_SIZE - 1) / Memory.PAGE_SIZE);
+    }
+}
@@ -32,6 +32,20 @@ public class OpaBuiltin {
         }
     }
 
+    // placeholder for the builtins required by the policy and not provided
+    static final class Unbound implements Builtin {
+        private final String name;
+
+        Unbound(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+    }
+
     @FunctionalInterface
     public interface AsBuiltin0 {
         int apply(OpaWasm instance);
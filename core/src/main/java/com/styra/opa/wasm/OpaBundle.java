@@ -0,0 +1,218 @@
+package com.styra.opa.wasm;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+// An OPA bundle (the "bundle.tar.gz" built by "opa build -t wasm"), read in a single pass
+// over the gzip and tar streams: "policy.wasm" is kept for the parser and the "data.json"
+// files are kept as raw bytes, they are merged directly into the guest memory.
+final class OpaBundle {
+    private static final int BLOCK_SIZE = 512;
+    private static final String POLICY_FILE = "policy.wasm";
+    private static final String DATA_FILE = "data.json";
+
+    private final byte[] policy;
+    private final List<DataFile> data;
+
+    private OpaBundle(byte[] policy, List<DataFile> data) {
+        this.policy = policy;
+        this.data = data;
+    }
+
+    byte[] policy() {
+        return policy;
+    }
+
+    List<DataFile> data() {
+        return data;
+    }
+
+    static OpaBundle read(InputStream bundle) throws IOException {
+        byte[] policy = null;
+        var data = new ArrayList<DataFile>();
+
+        try (var in = new GZIPInputStream(new BufferedInputStream(bundle))) {
+            var header = new byte[BLOCK_SIZE];
+            String longName = null;
+            while (true) {
+                readFully(in, header);
+                if (isZero(header)) {
+                    break;
+                }
+
+                var size = parseSize(header);
+                var type = (char) header[156];
+                var name = (longName != null) ? longName : parseName(header);
+                longName = null;
+
+                if (type == 'L') {
+                    // GNU long name of the next entry
+                    longName = trimNul(readEntry(in, size));
+                    continue;
+                } else if (type == 'x') {
+                    // PAX extended header, only the path is relevant
+                    longName = paxPath(readEntry(in, size));
+                    continue;
+                } else if (type != '0' && type != '\0') {
+                    skipEntry(in, size);
+                    continue;
+                }
+
+                var path = normalize(name);
+                if (path.equals(POLICY_FILE)) {
+                    policy = readEntry(in, size);
+                } else if (path.equals(DATA_FILE) || path.endsWith("/" + DATA_FILE)) {
+                    var segments = path.split("/");
+                    data.add(
+                            new DataFile(
+                                    Arrays.asList(segments).subList(0, segments.length - 1),
+                                    readEntry(in, size)));
+                } else {
+                    skipEntry(in, size);
+                }
+            }
+        }
+
+        if (policy == null) {
+            throw new IllegalArgumentException("The bundle doesn't contain a " + POLICY_FILE);
+        }
+        // parents first, so that nested documents are added to them
+        data.sort((a, b) -> Integer.compare(a.path.size(), b.path.size()));
+        return new OpaBundle(policy, Collections.unmodifiableList(data));
+    }
+
+    private static String normalize(String name) {
+        var path = name;
+        while (path.startsWith("/") || path.startsWith("./")) {
+            path = path.substring(path.startsWith("/") ? 1 : 2);
+        }
+        return path;
+    }
+
+    private static String parseName(byte[] header) {
+        var name = trimNul(Arrays.copyOfRange(header, 0, 100));
+        // ustar splits long paths in prefix and name
+        if (new String(header, 257, 5, StandardCharsets.US_ASCII).equals("ustar")) {
+            var prefix = trimNul(Arrays.copyOfRange(header, 345, 500));
+            if (!prefix.isEmpty()) {
+                return prefix + "/" + name;
+            }
+        }
+        return name;
+    }
+
+    private static long parseSize(byte[] header) {
+        // base-256 encoding, for entries larger than 8GB
+        if ((header[124] & 0x80) != 0) {
+            long size = 0;
+            for (int i = 125; i < 136; i++) {
+                size = (size << 8) | (header[i] & 0xFF);
+            }
+            return size;
+        }
+        long size = 0;
+        for (int i = 124; i < 136; i++) {
+            var c = header[i];
+            if (c >= '0' && c <= '7') {
+                size = (size << 3) | (c - '0');
+            } else if (c != ' ' || size != 0) {
+                break;
+            }
+        }
+        return size;
+    }
+
+    private static String paxPath(byte[] records) {
+        // "<length> <key>=<value>\n" records
+        var content = new String(records, StandardCharsets.UTF_8);
+        for (var record : content.split("\n")) {
+            var space = record.indexOf(' ');
+            if (space != -1 && record.startsWith("path=", space + 1)) {
+                return record.substring(space + 1 + "path=".length());
+            }
+        }
+        return null;
+    }
+
+    private static String trimNul(byte[] bytes) {
+        int end = 0;
+        while (end < bytes.length && bytes[end] != 0) {
+            end++;
+        }
+        return new String(bytes, 0, end, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isZero(byte[] block) {
+        for (var b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] readEntry(InputStream in, long size) throws IOException {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Bundle entry too large: " + size + " bytes");
+        }
+        var content = new byte[(int) size];
+        readFully(in, content);
+        skip(in, padding(size));
+        return content;
+    }
+
+    private static void skipEntry(InputStream in, long size) throws IOException {
+        skip(in, size + padding(size));
+    }
+
+    private static long padding(long size) {
+        return (BLOCK_SIZE - (size % BLOCK_SIZE)) % BLOCK_SIZE;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        if (in.readNBytes(buffer, 0, buffer.length) != buffer.length) {
+            throw new EOFException("Truncated bundle");
+        }
+    }
+
+    private static void skip(InputStream in, long n) throws IOException {
+        var remaining = n;
+        while (remaining > 0) {
+            var skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException("Truncated bundle");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    // a "data.json" file and the path of its directory, relative to the bundle root
+    static final class DataFile {
+        private final List<String> path;
+        private final byte[] content;
+
+        private DataFile(List<String> path, byte[] content) {
+            this.path = path;
+            this.content = content;
+        }
+
+        List<String> path() {
+            return path;
+        }
+
+        byte[] content() {
+            return content;
+        }
+    }
+}
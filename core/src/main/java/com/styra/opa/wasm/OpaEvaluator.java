@@ -0,0 +1,189 @@
+package com.styra.opa.wasm;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Evaluates policies served by an {@link OpaPolicyPool}, taking care of borrowing and returning
+ * the instances.
+ *
+ * <pre>{@code
+ * var evaluator = OpaEvaluator.create(pool);
+ *
+ * evaluator.evaluateAsync("example/allow", "{\"user\": \"alice\"}")
+ *         .thenAccept(result -> ...);
+ * }</pre>
+ *
+ * <p>{@link #evaluateAsync(String, String)} never blocks the calling thread, e.g. an event loop:
+ * the evaluation waits for a free instance with {@link OpaPolicyPool#borrowAsync()} and runs on
+ * the evaluator executor, so at most as many evaluations as the pool size are in flight while the
+ * others wait in the pool queue. Cancelling the returned future gives up the wait, or skips the
+ * evaluation if it hasn't started yet.
+ *
+ * <p>The data document is the one of the pool, see {@link OpaPolicyPool#data(String)}. An
+ * instance whose evaluation fails is discarded rather than returned to the pool. Entrypoints that
+ * are not defined in the policy are rejected with an {@link IllegalArgumentException}, without
+ * borrowing an instance once the entrypoints of the current generation are known.
+ */
+public final class OpaEvaluator {
+    private final OpaPolicyPool pool;
+    private final Executor executor;
+    // the entrypoints of the last generation served
+    private volatile Entrypoints entrypoints;
+
+    private OpaEvaluator(OpaPolicyPool pool, Executor executor) {
+        this.pool = pool;
+        this.executor = executor;
+    }
+
+    /**
+     * Creates an evaluator running on virtual threads, when available (Java 21+), or on the
+     * {@link ForkJoinPool#commonPool() common pool}.
+     */
+    public static OpaEvaluator create(OpaPolicyPool pool) {
+        return create(pool, defaultExecutor());
+    }
+
+    /** Creates an evaluator running the evaluations on {@code executor}. */
+    public static OpaEvaluator create(OpaPolicyPool pool, Executor executor) {
+        return new OpaEvaluator(Objects.requireNonNull(pool), Objects.requireNonNull(executor));
+    }
+
+    /**
+     * Evaluates {@code entrypoint} with the input on the calling thread, blocking if the pool is at
+     * capacity.
+     *
+     * @param input a well-formed stringified Json
+     * @throws InterruptedException if the calling thread is interrupted while waiting for an
+     *     instance
+     */
+    public String evaluate(String entrypoint, String input) throws InterruptedException {
+        checkEntrypoint(entrypoint);
+        var loan = pool.borrow();
+        return evaluate(loan, entrypoint, input);
+    }
+
+    /**
+     * Evaluates {@code entrypoint} with the input on the evaluator executor.
+     *
+     * @param input a well-formed stringified Json
+     * @return a future completed with the result, or exceptionally with the error borrowing an
+     *     instance (see {@link OpaPolicyPool#borrowAsync()}) or evaluating the policy
+     */
+    public CompletableFuture<String> evaluateAsync(String entrypoint, String input) {
+        Objects.requireNonNull(entrypoint);
+        Objects.requireNonNull(input);
+        try {
+            checkEntrypoint(entrypoint);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        var result = new CompletableFuture<String>();
+        var borrow = pool.borrowAsync();
+        borrow.whenComplete(
+                (loan, error) -> {
+                    if (error != null) {
+                        result.completeExceptionally(error);
+                        return;
+                    }
+                    if (result.isDone()) {
+                        loan.close();
+                        return;
+                    }
+                    try {
+                        executor.execute(() -> run(loan, entrypoint, input, result));
+                    } catch (RejectedExecutionException e) {
+                        loan.close();
+                        result.completeExceptionally(e);
+                    }
+                });
+        // the waiter leaves the pool queue, a loan already granted is returned by run
+        result.whenComplete(
+                (ignored, error) -> {
+                    if (result.isCancelled()) {
+                        borrow.cancel(false);
+                    }
+                });
+        return result;
+    }
+
+    private void run(
+            OpaPolicyPool.Loan loan,
+            String entrypoint,
+            String input,
+            CompletableFuture<String> result) {
+        if (result.isDone()) {
+            loan.close();
+            return;
+        }
+        try {
+            result.complete(evaluate(loan, entrypoint, input));
+        } catch (RuntimeException | Error e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    // fails fast when the entrypoint isn't defined in the generation new loans are served from
+    private void checkEntrypoint(String entrypoint) {
+        var known = entrypoints;
+        if (known != null
+                && known.generation == pool.generation()
+                && !known.ids.containsKey(entrypoint)) {
+            throw unknownEntrypoint(entrypoint);
+        }
+    }
+
+    private String evaluate(OpaPolicyPool.Loan loan, String entrypoint, String input) {
+        Integer id;
+        String result;
+        try {
+            var known = entrypoints;
+            if (known == null || known.generation != loan.generation()) {
+                known = new Entrypoints(loan.generation(), loan.policy().entrypoints());
+                entrypoints = known;
+            }
+            id = known.ids.get(entrypoint);
+            result = (id == null) ? null : loan.policy().entrypoint(id).evaluate(input);
+        } catch (RuntimeException | Error e) {
+            // the instance may be left in a bad state
+            loan.discard();
+            throw e;
+        }
+        loan.close();
+        if (id == null) {
+            // a caller error, the instance is returned as is
+            throw unknownEntrypoint(entrypoint);
+        }
+        return result;
+    }
+
+    private static IllegalArgumentException unknownEntrypoint(String entrypoint) {
+        return new IllegalArgumentException(
+                "Entrypoint " + entrypoint + " is not defined in this policy");
+    }
+
+    // virtual threads are only available since Java 21
+    private static Executor defaultExecutor() {
+        try {
+            return (Executor)
+                    Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return ForkJoinPool.commonPool();
+        }
+    }
+
+    private static final class Entrypoints {
+        private final long generation;
+        private final Map<String, Integer> ids;
+
+        private Entrypoints(long generation, Map<String, Integer> ids) {
+            this.generation = generation;
+            this.ids = ids;
+        }
+    }
+}
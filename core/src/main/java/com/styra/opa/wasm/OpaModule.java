@@ -0,0 +1,169 @@
+package com.styra.opa.wasm;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import run.endive.runtime.ByteArrayMemory;
+import run.endive.runtime.Instance;
+import run.endive.runtime.Machine;
+import run.endive.wasm.WasmModule;
+import run.endive.wasm.types.MemoryLimits;
+
+/**
+ * A policy module parsed and compiled once, from which many {@link OpaPolicy} instances can be
+ * created cheaply.
+ *
+ * <p>Obtained with {@link OpaPolicy.Builder#buildModule()}, it holds the parsed Wasm module, the
+ * compiled machine factory and everything that is the same for all the instances (e.g. the
+ * entrypoints table). It's immutable and thread-safe, {@link #instantiate()} only allocates the
+ * memory and the state of a new instance:
+ *
+ * <pre>{@code
+ * var module = OpaPolicy.builder().withPolicy(policyBytes).buildModule();
+ * var pool = OpaPolicyPool.create(module::instantiate, 32);
+ * }</pre>
+ */
+public final class OpaModule {
+    private final WasmModule module;
+    // null when the interpreter is used
+    private final Function<Instance, Machine> machineFactory;
+    private final ObjectMapper jsonMapper;
+    private final ObjectMapper yamlMapper;
+    private final int initialMemory;
+    private final int maxMemory;
+    private final MemoryPlanner memoryPlanner;
+    // id -> builtin dispatch table, shared by all the instances
+    private final OpaBuiltin.Builtin[] builtins;
+    private final boolean fastEvaluation;
+    // data every instance starts with, e.g. from a bundle, null when none
+    private final List<OpaBundle.DataFile> data;
+
+    // resolved by the first instance that needs it, it's the same for every instance
+    private volatile Map<String, Integer> entrypoints;
+
+    OpaModule(
+            WasmModule module,
+            Function<Instance, Machine> machineFactory,
+            ObjectMapper jsonMapper,
+            ObjectMapper yamlMapper,
+            int initialMemory,
+            int maxMemory,
+            MemoryPlanner memoryPlanner,
+            boolean defaultBuiltins,
+            OpaBuiltin.Builtin[] builtins,
+            boolean validateBuiltins,
+            boolean fastEvaluation,
+            List<OpaBundle.DataFile> data) {
+        this.module = module;
+        this.machineFactory = machineFactory;
+        this.jsonMapper = jsonMapper;
+        this.yamlMapper = yamlMapper;
+        this.initialMemory = initialMemory;
+        this.maxMemory = maxMemory;
+        this.memoryPlanner = memoryPlanner;
+        this.builtins = resolveBuiltins(defaultBuiltins, builtins, validateBuiltins);
+        this.fastEvaluation = fastEvaluation && hasExport(module, "opa_eval");
+        this.data = data;
+    }
+
+    // the builtins required by the policy are only known to the guest,
+    // a throwaway instance resolves them once for the whole module
+    private OpaBuiltin.Builtin[] resolveBuiltins(
+            boolean defaultBuiltins, OpaBuiltin.Builtin[] builtins, boolean validate) {
+        var table =
+                newWasm(initialMemory)
+                        .withDefaultBuiltins(defaultBuiltins)
+                        .addBuiltins(builtins)
+                        .build()
+                        .builtins();
+
+        if (validate) {
+            var missing = new ArrayList<String>();
+            for (var builtin : table) {
+                if (builtin instanceof OpaBuiltin.Unbound) {
+                    missing.add(builtin.name());
+                }
+            }
+            if (!missing.isEmpty()) {
+                throw new IllegalArgumentException(
+                        "The policy requires builtins that are not provided: "
+                                + String.join(", ", missing));
+            }
+        }
+        return table;
+    }
+
+    private static boolean hasExport(WasmModule module, String name) {
+        var exportSection = module.exportSection();
+        for (int i = 0; i < exportSection.exportCount(); i++) {
+            if (exportSection.getExport(i).name().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Creates a new, independent, instance of the policy. */
+    public OpaPolicy instantiate() {
+        return instantiate(initialMemory, true);
+    }
+
+    // the memory starts with at least "minPages", e.g. to fit a snapshot
+    OpaPolicy instantiate(int minPages, boolean loadData) {
+        var initialPages = Math.min(Math.max(initialMemory, minPages), maxMemory);
+        if (memoryPlanner != null) {
+            initialPages =
+                    Math.min(
+                            Math.max(initialPages, memoryPlanner.recommendedInitialPages()),
+                            maxMemory);
+        }
+
+        var policy = new OpaPolicy(this, newWasm(initialPages).withBuiltinsTable(builtins).build());
+        if (data != null && loadData) {
+            policy.loadModuleData();
+        }
+        return policy;
+    }
+
+    private OpaWasm.Builder newWasm(int initialPages) {
+        var wasmBuilder =
+                OpaWasm.builder()
+                        .withModule(module)
+                        .withJsonMapper(jsonMapper)
+                        .withYamlMapper(yamlMapper)
+                        .withMemory(new ByteArrayMemory(new MemoryLimits(initialPages, maxMemory)));
+
+        if (machineFactory != null) {
+            wasmBuilder.withMachineFactory(machineFactory);
+        } else {
+            wasmBuilder.disableCompiler();
+        }
+        return wasmBuilder;
+    }
+
+    WasmModule wasmModule() {
+        return module;
+    }
+
+    boolean fastEvaluation() {
+        return fastEvaluation;
+    }
+
+    List<OpaBundle.DataFile> data() {
+        return data;
+    }
+
+    MemoryPlanner memoryPlanner() {
+        return memoryPlanner;
+    }
+
+    Map<String, Integer> entrypoints() {
+        return entrypoints;
+    }
+
+    void entrypoints(Map<String, Integer> entrypoints) {
+        this.entrypoints = entrypoints;
+    }
+}
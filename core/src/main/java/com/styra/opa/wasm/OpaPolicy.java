@@ -8,32 +8,64 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import run.endive.runtime.ByteArrayMemory;
-import run.endive.runtime.Memory;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import run.endive.compiler.MachineFactoryCompiler;
+import run.endive.runtime.Instance;
+import run.endive.runtime.Machine;
+import run.endive.wasm.Parser;
+import run.endive.wasm.WasmModule;
 import run.endive.wasm.types.MemoryLimits;
 
 // final user API
 // directly porting:
 // https://github.com/open-policy-agent/npm-opa-wasm/blob/main/README.md
 public class OpaPolicy {
+    private final OpaModule module;
     private final OpaWasm wasm;
+    // the module exports the one-shot "opa_eval" function
+    private final boolean fastEvaluation;
+    // optional, shared with the other instances of the same policy
+    private final MemoryPlanner memoryPlanner;
     private int baseHeapPtr = -1;
     private int dataHeapPtr = -1;
     private int dataAddr = -1;
     private int inputAddr = -1;
+    // the input of the last one-shot evaluation has been dropped with the heap
+    private boolean inputConsumed;
     private int entrypoint;
+    // version of the data document owned by an OpaPolicyPool, -1 when unknown
+    private long dataVersion = -1;
+    // the loaded data is the one of the module, e.g. from a bundle
+    private boolean moduleData;
+    // evaluations run by this instance since its creation
+    private long evaluations;
+    // bookkeeping of an OpaPolicyPool: when the instance was returned,
+    // and the linear memory it has been accounted for
+    private long idleSince;
+    private int accountedPages;
 
-    private OpaPolicy(OpaWasm wasm) {
+    OpaPolicy(OpaModule module, OpaWasm wasm) {
+        this.module = module;
         this.wasm = wasm;
+        this.fastEvaluation = module.fastEvaluation();
+        this.memoryPlanner = module.memoryPlanner();
 
         if (!(wasm.exports().opaWasmAbiVersion().getValue() == 1L
                 && wasm.exports().opaWasmAbiMinorVersion().getValue() == 3L)) {
@@ -50,6 +82,11 @@ public class OpaPolicy {
         wasm.exports().opaHeapPtrSet(this.dataHeapPtr);
     }
 
+    /** Returns the module this policy has been instantiated from. */
+    public OpaModule module() {
+        return module;
+    }
+
     public OpaPolicy entrypoint(int entrypoint) {
         this.entrypoint = entrypoint;
         return this;
@@ -60,18 +97,26 @@ public class OpaPolicy {
         return this;
     }
 
-    private int loadJson(String data) {
-        var dataBytes = data.getBytes(StandardCharsets.UTF_8);
-        var dataStrAddr = wasm.exports().opaMalloc(dataBytes.length);
-        wasm.memory().write(dataStrAddr, dataBytes);
-        var dstAddr = wasm.exports().opaJsonParse(dataStrAddr, dataBytes.length);
-        wasm.exports().opaFree(dataStrAddr);
+    public OpaPolicy entrypoint(EntrypointHandle entrypoint) {
+        this.entrypoint = entrypoint.id();
+        return this;
+    }
+
+    public EntrypointHandle entrypointHandle(String name) {
+        return new EntrypointHandle(name, findEntrypoint(name));
+    }
+
+    private int loadJson(byte[] json, int offset, int length) {
+        var jsonStrAddr = wasm.exports().opaMalloc(length);
+        wasm.memory().write(jsonStrAddr, json, offset, length);
+        var dstAddr = wasm.exports().opaJsonParse(jsonStrAddr, length);
+        wasm.exports().opaFree(jsonStrAddr);
         return dstAddr;
     }
 
-    private String dumpJson(int addr) {
+    private byte[] dumpJson(int addr) {
         int resultStrAddr = wasm.exports().opaJsonDump(addr);
-        var result = wasm.memory().readCString(resultStrAddr);
+        var result = wasm.readCBytes(resultStrAddr);
         wasm.exports().opaFree(resultStrAddr);
         return result;
     }
@@ -79,25 +124,162 @@ public class OpaPolicy {
     // data MUST be a serializable object or ArrayBuffer, which assumed to be a well-formed
     // stringified JSON
     public OpaPolicy data(String data) {
+        return data(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // data MUST be a well-formed UTF-8 encoded JSON document
+    public OpaPolicy data(byte[] data) {
+        return data(data, 0, data.length);
+    }
+
+    private OpaPolicy data(byte[] data, int offset, int length) {
         if (this.dataAddr != -1) {
             wasm.exports().opaValueFree(this.dataAddr);
         }
 
         wasm.exports().opaHeapPtrSet(this.baseHeapPtr);
-        this.dataAddr = loadJson(data);
+        this.dataVersion = -1;
+        this.moduleData = false;
+        ensureMemory(MemoryPlanner.Phase.DATA, this.baseHeapPtr + length);
+        this.dataAddr = loadJson(data, offset, length);
         this.dataHeapPtr = wasm.exports().opaHeapPtrGet();
+        record(MemoryPlanner.Phase.DATA, this.dataHeapPtr);
         return this;
     }
 
     public OpaPolicy data(JsonNode data) {
+        return data((Object) data);
+    }
+
+    // data is serialized with the configured Json mapper directly into the Wasm memory
+    // a String or a byte[] is taken as a Json document, like with data(String) and data(byte[])
+    public OpaPolicy data(Object data) {
+        if (data instanceof String) {
+            return data((String) data);
+        } else if (data instanceof byte[]) {
+            return data((byte[]) data);
+        }
+        if (this.dataAddr != -1) {
+            wasm.exports().opaValueFree(this.dataAddr);
+        }
+
+        wasm.exports().opaHeapPtrSet(this.baseHeapPtr);
+        this.dataVersion = -1;
+        this.moduleData = false;
+        ensureMemory(MemoryPlanner.Phase.DATA, this.baseHeapPtr);
+        this.dataAddr = writeJson(data).parseJson();
+        this.dataHeapPtr = wasm.exports().opaHeapPtrGet();
+        record(MemoryPlanner.Phase.DATA, this.dataHeapPtr);
+        return this;
+    }
+
+    // the data files of the module bundle are merged in the guest memory,
+    // each one is parsed and added under the path of its directory
+    void loadModuleData() {
+        if (this.dataAddr != -1) {
+            wasm.exports().opaValueFree(this.dataAddr);
+        }
+
+        wasm.exports().opaHeapPtrSet(this.baseHeapPtr);
+        this.dataVersion = -1;
+        var files = module.data();
+        long size = 0;
+        for (var file : files) {
+            size += file.content().length;
+        }
+        ensureMemory(
+                MemoryPlanner.Phase.DATA,
+                (int) Math.min(this.baseHeapPtr + size, Integer.MAX_VALUE));
+
+        int root = -1;
+        for (var file : files) {
+            var content = file.content();
+            var valueAddr = loadJson(content, 0, content.length);
+            if (file.path().isEmpty() && root == -1) {
+                root = valueAddr;
+                continue;
+            }
+            if (root == -1) {
+                root = loadJson(EMPTY_OBJECT, 0, EMPTY_OBJECT.length);
+            }
+
+            byte[] path;
+            try {
+                path = wasm.jsonMapper().writeValueAsBytes(file.path());
+            } catch (JsonProcessingException e) {
+                throw new RuntimeException(e);
+            }
+            var pathAddr = loadJson(path, 0, path.length);
+            var result =
+                    OpaErrorCode.fromValue(
+                            wasm.exports().opaValueAddPath(root, pathAddr, valueAddr));
+            wasm.exports().opaValueFree(pathAddr);
+            if (result != OpaErrorCode.OPA_ERR_OK) {
+                throw new IllegalArgumentException(
+                        "Failed to add the data at /"
+                                + String.join("/", file.path())
+                                + ", returned code is: "
+                                + result);
+            }
+        }
+        if (root == -1) {
+            root = loadJson(EMPTY_OBJECT, 0, EMPTY_OBJECT.length);
+        }
+
+        this.dataAddr = root;
+        this.dataHeapPtr = wasm.exports().opaHeapPtrGet();
+        this.moduleData = true;
+        record(MemoryPlanner.Phase.DATA, this.dataHeapPtr);
+    }
+
+    private WasmOutputStream writeJson(Object value) {
+        var out = new WasmOutputStream(wasm);
         try {
-            return data(wasm.jsonMapper().writeValueAsString(data));
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("Failed to serialize the provided data to Json: " + data, e);
+            wasm.jsonMapper().writeValue(out, value);
+        } catch (IOException e) {
+            out.free();
+            throw new RuntimeException(
+                    "Failed to serialize the provided value to Json: " + value, e);
         }
+        return out;
     }
 
     public OpaPolicy input(String input) {
+        return input(input.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // input MUST be a well-formed UTF-8 encoded JSON document
+    public OpaPolicy input(byte[] input) {
+        return input(input, 0, input.length);
+    }
+
+    private OpaPolicy input(byte[] input, int offset, int length) {
+        resetInput();
+        ensureMemory(MemoryPlanner.Phase.INPUT, this.dataHeapPtr + length);
+
+        this.inputAddr = loadJson(input, offset, length);
+        this.inputConsumed = false;
+        recordHeap(MemoryPlanner.Phase.INPUT);
+        return this;
+    }
+
+    // input is serialized with the configured Json mapper directly into the Wasm memory,
+    // a String or a byte[] is taken as a Json document, like with input(String) and input(byte[])
+    public OpaPolicy input(Object input) {
+        if (input instanceof String) {
+            return input((String) input);
+        } else if (input instanceof byte[]) {
+            return input((byte[]) input);
+        }
+        resetInput();
+        ensureMemory(MemoryPlanner.Phase.INPUT, this.dataHeapPtr);
+        this.inputAddr = writeJson(input).parseJson();
+        this.inputConsumed = false;
+        recordHeap(MemoryPlanner.Phase.INPUT);
+        return this;
+    }
+
+    private void resetInput() {
         if (this.dataAddr == -1) {
             // to keep the ordering: data - input - evaluate
             data("");
@@ -105,103 +287,560 @@ public class OpaPolicy {
             // Reset the heap pointer before each evaluation
             wasm.exports().opaHeapPtrSet(this.dataHeapPtr);
         }
+    }
 
-        var inputLen = input.getBytes().length;
-        var delta = this.dataHeapPtr + inputLen - (wasm.memory().pages() * Memory.PAGE_SIZE);
+    // grows the linear memory to make sure that it can hold at least "size" bytes,
+    // with a planner it's grown, at once, to what the phase is expected to need
+    private void ensureMemory(MemoryPlanner.Phase phase, int size) {
+        var memory = wasm.memory();
+        var required = MemoryPlanner.pages(size);
+        var target = required;
+        if (memoryPlanner != null) {
+            var planned =
+                    Math.min(
+                            memoryPlanner.plannedPages(phase, heapBase(phase), size),
+                            memory.maximumPages());
+            target = Math.max(required, planned);
+        }
+        var delta = target - memory.pages();
         if (delta > 0) {
             // TODO: similar logic might go into Endive itself?
-            var pageSize = (int) Math.ceil(delta / Memory.PAGE_SIZE);
-            var grown = wasm.memory().grow(pageSize);
+            var grown = memory.grow(delta);
             if (grown == -1) {
                 throw new RuntimeException("Maximum memory size exceeded");
             }
         }
+    }
 
-        this.inputAddr = loadJson(input);
-        return this;
+    // with a planner, the memory the evaluation is expected to need is grown before it starts
+    private void ensureEvalMemory(int heapPtr) {
+        if (memoryPlanner != null) {
+            ensureMemory(MemoryPlanner.Phase.EVAL, heapPtr);
+        }
+    }
+
+    // where the heap used by the phase starts
+    private int heapBase(MemoryPlanner.Phase phase) {
+        return (phase == MemoryPlanner.Phase.DATA) ? this.baseHeapPtr : this.dataHeapPtr;
+    }
+
+    private void record(MemoryPlanner.Phase phase, int heapPtr) {
+        if (memoryPlanner != null) {
+            memoryPlanner.record(phase, heapBase(phase), heapPtr);
+        }
     }
 
+    private void recordHeap(MemoryPlanner.Phase phase) {
+        if (memoryPlanner != null) {
+            memoryPlanner.record(phase, heapBase(phase), wasm.exports().opaHeapPtrGet());
+        }
+    }
+
+    // the returned map is immutable and shared by all the instances of the module
     public Map<String, Integer> entrypoints() {
-        try {
-            var json = dumpJson(wasm.exports().entrypoints());
-            var entrypoints =
-                    wasm.jsonMapper()
-                            .readValue(json, new TypeReference<HashMap<String, Integer>>() {});
-            return entrypoints;
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("Failed to parse the response from \"entrypoints()\"", e);
+        var entrypoints = module.entrypoints();
+        if (entrypoints == null) {
+            try {
+                var json = dumpJson(wasm.exports().entrypoints());
+                var parsed =
+                        wasm.jsonMapper()
+                                .readValue(json, new TypeReference<HashMap<String, Integer>>() {});
+                entrypoints = Map.copyOf(parsed);
+            } catch (IOException e) {
+                throw new RuntimeException(
+                        "Failed to parse the response from \"entrypoints()\"", e);
+            }
+            module.entrypoints(entrypoints);
         }
+        return entrypoints;
     }
 
     public int findEntrypoint(String name) {
-        var entrypoints = entrypoints();
-        if (!entrypoints.containsKey(name)) {
+        var id = entrypoints().get(name);
+        if (id == null) {
             throw new IllegalArgumentException(
                     "Entrypoint " + name + " is not defined in this policy");
         }
-        return entrypoints.get(name);
+        return id;
     }
 
+    // evaluates the input set with input(...), the input of a previous evaluate(input)
+    // is not kept: calling this right after one throws an IllegalStateException
     public String evaluate() {
+        return new String(evaluateToBytes(), StandardCharsets.UTF_8);
+    }
+
+    // returns the raw UTF-8 encoded JSON result
+    public byte[] evaluateToBytes() {
+        return readResult(evaluateToAddress());
+    }
+
+    // the result is parsed straight from the Wasm memory
+    public JsonNode evaluateAsTree() {
+        return readResult(evaluateToAddress(), JsonNode.class);
+    }
+
+    // the result is mapped to "type" straight from the Wasm memory
+    public <T> T evaluateAs(Class<T> type) {
+        return readResult(evaluateToAddress(), type);
+    }
+
+    // returns the address of the NUL-terminated Json result, to be released with opaFree
+    private int evaluateToAddress() {
         var ctxAddr = wasm.exports().opaEvalCtxNew();
         if (this.dataAddr == -1) {
             data("");
         }
         wasm.exports().opaEvalCtxSetData(ctxAddr, this.dataAddr);
         if (this.inputAddr == -1) {
+            if (inputConsumed) {
+                throw new IllegalStateException(
+                        "The input of a one-shot evaluation is not kept, set it with input(...)"
+                                + " before calling evaluate()");
+            }
             input("");
         }
         wasm.exports().opaEvalCtxSetInput(ctxAddr, this.inputAddr);
         wasm.exports().opaEvalCtxSetEntrypoint(ctxAddr, this.entrypoint);
+        ensureEvalMemory(wasm.exports().opaHeapPtrGet());
 
         var evalResult = OpaErrorCode.fromValue(wasm.exports().eval(ctxAddr));
         if (evalResult != OpaErrorCode.OPA_ERR_OK) {
             throw new RuntimeException(
                     "Error evaluating the Opa Policy, returned code is: " + evalResult);
         }
+        recordHeap(MemoryPlanner.Phase.EVAL);
+        evaluations++;
 
         var resultAddr = wasm.exports().opaEvalCtxGetResult(ctxAddr);
-        var result = dumpJson(resultAddr);
+        var resultStrAddr = wasm.exports().opaJsonDump(resultAddr);
         wasm.exports().opaFree(resultAddr);
+        return resultStrAddr;
+    }
+
+    private byte[] readResult(int resultStrAddr) {
+        var result = wasm.readCBytes(resultStrAddr);
+        wasm.exports().opaFree(resultStrAddr);
         return result;
     }
 
+    private <T> T readResult(int resultStrAddr, Class<T> type) {
+        try (var in = new WasmInputStream(wasm.memory(), resultStrAddr)) {
+            return wasm.jsonMapper().readValue(in, type);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to parse the result of the evaluation", e);
+        } finally {
+            wasm.exports().opaFree(resultStrAddr);
+        }
+    }
+
+    /**
+     * Evaluates several entrypoints against the same input, which is parsed only once.
+     *
+     * @return the results keyed by entrypoint name, in the order they have been requested
+     */
+    public Map<String, String> evaluateAll(String input, String... entrypoints) {
+        return evaluateAll(input.getBytes(StandardCharsets.UTF_8), entrypoints);
+    }
+
+    public Map<String, String> evaluateAll(byte[] input, String... entrypoints) {
+        var ids = new int[entrypoints.length];
+        for (int i = 0; i < entrypoints.length; i++) {
+            ids[i] = findEntrypoint(entrypoints[i]);
+        }
+
+        var previousEntrypoint = this.entrypoint;
+        var results = new LinkedHashMap<String, String>();
+        try {
+            input(input);
+            // everything allocated after the input can be dropped between evaluations
+            var inputHeapPtr = wasm.exports().opaHeapPtrGet();
+            for (int i = 0; i < ids.length; i++) {
+                this.entrypoint = ids[i];
+                var result = readResult(evaluateToAddress());
+                results.put(entrypoints[i], new String(result, StandardCharsets.UTF_8));
+                wasm.exports().opaHeapPtrSet(inputHeapPtr);
+            }
+        } finally {
+            this.entrypoint = previousEntrypoint;
+        }
+        return results;
+    }
+
+    /**
+     * Evaluates every input against the current data and entrypoint.
+     *
+     * <p>Inputs can be {@code String}s or {@code byte[]}s of well-formed Json, any other object is
+     * serialized with the configured Json mapper.
+     *
+     * @return the results, in the same order as the inputs
+     */
+    public List<String> evaluateBatch(List<?> inputs) {
+        var results = new ArrayList<String>(inputs.size());
+        evaluateEach(inputs.iterator(), results::add);
+        return results;
+    }
+
+    /**
+     * Streaming version of {@link #evaluateBatch(List)}, every result is handed to {@code results}
+     * as soon as it's available. The consumer must not use this policy.
+     */
+    public void evaluateEach(Iterator<?> inputs, Consumer<String> results) {
+        evaluateEachToBytes(
+                inputs, result -> results.accept(new String(result, StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Same as {@link #evaluateEach(Iterator, Consumer)}, handing the raw UTF-8 encoded Json results
+     * to {@code results} without decoding them into {@code String}s, e.g. to forward them as-is.
+     */
+    public void evaluateEachToBytes(Iterator<?> inputs, Consumer<byte[]> results) {
+        if (this.dataAddr == -1) {
+            data("");
+        }
+
+        if (fastEvaluation) {
+            while (inputs.hasNext()) {
+                results.accept(readResult(evaluateToAddress(inputs.next())));
+            }
+            return;
+        }
+
+        // a single evaluation context, living right after the data, for the whole batch
+        wasm.exports().opaHeapPtrSet(this.dataHeapPtr);
+        var ctxAddr = wasm.exports().opaEvalCtxNew();
+        wasm.exports().opaEvalCtxSetData(ctxAddr, this.dataAddr);
+        wasm.exports().opaEvalCtxSetEntrypoint(ctxAddr, this.entrypoint);
+        var itemHeapPtr = wasm.exports().opaHeapPtrGet();
+        // the heap is rewound at every item
+        this.inputAddr = -1;
+        this.inputConsumed = true;
+
+        while (inputs.hasNext()) {
+            wasm.exports().opaHeapPtrSet(itemHeapPtr);
+            wasm.exports().opaEvalCtxSetInput(ctxAddr, loadItem(inputs.next()));
+            ensureEvalMemory(wasm.exports().opaHeapPtrGet());
+
+            var evalResult = OpaErrorCode.fromValue(wasm.exports().eval(ctxAddr));
+            if (evalResult != OpaErrorCode.OPA_ERR_OK) {
+                throw new RuntimeException(
+                        "Error evaluating the Opa Policy, returned code is: " + evalResult);
+            }
+            recordHeap(MemoryPlanner.Phase.EVAL);
+            evaluations++;
+
+            results.accept(dumpJson(wasm.exports().opaEvalCtxGetResult(ctxAddr)));
+        }
+    }
+
+    private int loadItem(Object input) {
+        if (input instanceof String) {
+            var bytes = ((String) input).getBytes(StandardCharsets.UTF_8);
+            ensureMemory(MemoryPlanner.Phase.INPUT, wasm.exports().opaHeapPtrGet() + bytes.length);
+            return loadJson(bytes, 0, bytes.length);
+        } else if (input instanceof byte[]) {
+            var bytes = (byte[]) input;
+            ensureMemory(MemoryPlanner.Phase.INPUT, wasm.exports().opaHeapPtrGet() + bytes.length);
+            return loadJson(bytes, 0, bytes.length);
+        } else {
+            return writeJson(input).parseJson();
+        }
+    }
+
     public String evaluate(String input) {
-        input(input);
-        return evaluate();
+        return evaluate(input.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String evaluate(byte[] input) {
+        return new String(evaluateToBytes(input), StandardCharsets.UTF_8);
+    }
+
+    public String evaluate(ByteBuffer input) {
+        return new String(evaluateToBytes(input), StandardCharsets.UTF_8);
+    }
+
+    public byte[] evaluateToBytes(byte[] input) {
+        return readResult(evaluateToAddress(input, 0, input.length));
+    }
+
+    // the remaining bytes of the buffer are used as input, its position is left untouched
+    public byte[] evaluateToBytes(ByteBuffer input) {
+        if (input.hasArray()) {
+            return readResult(
+                    evaluateToAddress(
+                            input.array(),
+                            input.arrayOffset() + input.position(),
+                            input.remaining()));
+        }
+        var bytes = new byte[input.remaining()];
+        input.duplicate().get(bytes);
+        return evaluateToBytes(bytes);
+    }
+
+    public JsonNode evaluateAsTree(String input) {
+        return evaluateAsTree(input.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public JsonNode evaluateAsTree(byte[] input) {
+        return readResult(evaluateToAddress(input, 0, input.length), JsonNode.class);
+    }
+
+    public <T> T evaluateAs(String input, Class<T> type) {
+        return evaluateAs(input.getBytes(StandardCharsets.UTF_8), type);
+    }
+
+    public <T> T evaluateAs(byte[] input, Class<T> type) {
+        return readResult(evaluateToAddress(input, 0, input.length), type);
+    }
+
+    private int evaluateToAddress(byte[] input, int offset, int length) {
+        if (fastEvaluation) {
+            return fastEvaluate(input, offset, length);
+        }
+        input(input, offset, length);
+        return evaluateToAddress();
     }
 
     public String evaluate(JsonNode input) {
-        try {
-            input(wasm.jsonMapper().writeValueAsString(input));
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException(e);
+        return evaluate((Object) input);
+    }
+
+    public String evaluate(Object input) {
+        return new String(evaluateToBytes(input), StandardCharsets.UTF_8);
+    }
+
+    // input is serialized with the configured Json mapper directly into the Wasm memory,
+    // a String or a byte[] is taken as a Json document, like with the dedicated overloads
+    public byte[] evaluateToBytes(Object input) {
+        return readResult(evaluateToAddress(input));
+    }
+
+    public JsonNode evaluateAsTree(Object input) {
+        return readResult(evaluateToAddress(input), JsonNode.class);
+    }
+
+    public <T> T evaluateAs(Object input, Class<T> type) {
+        return readResult(evaluateToAddress(input), type);
+    }
+
+    private int evaluateToAddress(Object input) {
+        if (input instanceof String) {
+            var bytes = ((String) input).getBytes(StandardCharsets.UTF_8);
+            return evaluateToAddress(bytes, 0, bytes.length);
+        } else if (input instanceof byte[]) {
+            var bytes = (byte[]) input;
+            return evaluateToAddress(bytes, 0, bytes.length);
+        }
+        if (!fastEvaluation) {
+            input(input);
+            return evaluateToAddress();
         }
-        return evaluate();
+
+        resetInput();
+        ensureMemory(MemoryPlanner.Phase.INPUT, this.dataHeapPtr);
+        var out = writeJson(input);
+        return fastEvaluate(out.address(), out.size(), wasm.exports().opaHeapPtrGet());
+    }
+
+    private int fastEvaluate(byte[] input, int offset, int length) {
+        if (this.dataAddr == -1) {
+            data("");
+        }
+
+        var inputStrAddr = this.dataHeapPtr;
+        ensureMemory(MemoryPlanner.Phase.INPUT, inputStrAddr + length);
+        wasm.memory().write(inputStrAddr, input, offset, length);
+        return fastEvaluate(inputStrAddr, length, inputStrAddr + length);
+    }
+
+    // Single host -> guest call through the "opa_eval" export:
+    // the raw input is already in memory and the guest
+    // takes care of parsing, evaluating and dumping the result
+    private int fastEvaluate(int inputStrAddr, int length, int heapPtr) {
+        // the heap will be rewound to this point, any previously parsed input is lost
+        this.inputAddr = -1;
+        this.inputConsumed = true;
+        ensureEvalMemory(heapPtr);
+
+        var resultStrAddr =
+                wasm.exports()
+                        .opaEval(
+                                0, // reserved
+                                this.entrypoint,
+                                this.dataAddr,
+                                inputStrAddr,
+                                length,
+                                heapPtr,
+                                0); // JSON format
+        if (resultStrAddr == 0) {
+            throw new RuntimeException("Error evaluating the Opa Policy");
+        }
+        recordHeap(MemoryPlanner.Phase.EVAL);
+        evaluations++;
+        return resultStrAddr;
     }
 
     /** Package-private: used by {@link OpaPolicyPool} on return. */
     void reset() {
-        if (dataAddr != -1) {
-            wasm.exports().opaValueFree(dataAddr);
+        if (module.data() != null) {
+            // the module data stays loaded, unless the borrower replaced it
+            if (moduleData) {
+                wasm.exports().opaHeapPtrSet(dataHeapPtr);
+            } else {
+                loadModuleData();
+            }
+        } else {
+            if (dataAddr != -1) {
+                wasm.exports().opaValueFree(dataAddr);
+            }
+            wasm.exports().opaHeapPtrSet(baseHeapPtr);
+            dataHeapPtr = baseHeapPtr;
+            dataAddr = -1;
         }
-        wasm.exports().opaHeapPtrSet(baseHeapPtr);
-        dataHeapPtr = baseHeapPtr;
-        dataAddr = -1;
+        dataVersion = -1;
+        inputAddr = -1;
+        inputConsumed = false;
+        entrypoint = 0;
+    }
+
+    /**
+     * Package-private: used by {@link OpaPolicyPool} on return when the pool owns the data, the
+     * data stays loaded and only what has been allocated after it is dropped.
+     */
+    void rewind() {
+        wasm.exports().opaHeapPtrSet(dataHeapPtr);
         inputAddr = -1;
+        inputConsumed = false;
         entrypoint = 0;
     }
 
+    long dataVersion() {
+        return dataVersion;
+    }
+
+    void dataVersion(long dataVersion) {
+        this.dataVersion = dataVersion;
+    }
+
+    long evaluations() {
+        return evaluations;
+    }
+
+    // the size of the linear memory, it never shrinks
+    int pages() {
+        return wasm.memory().pages();
+    }
+
+    long idleSince() {
+        return idleSince;
+    }
+
+    void idleSince(long idleSince) {
+        this.idleSince = idleSince;
+    }
+
+    int accountedPages() {
+        return accountedPages;
+    }
+
+    void accountedPages(int accountedPages) {
+        this.accountedPages = accountedPages;
+    }
+
+    /**
+     * Captures the linear memory and the heap pointers of this policy, typically right after
+     * loading the data, so that ready-to-serve copies can be created with {@link
+     * #fromSnapshot(OpaModule, Snapshot)} without parsing the data again.
+     *
+     * <p>Only the memory up to the end of the data is captured, the current input and entrypoint
+     * are not part of the snapshot.
+     */
+    public Snapshot snapshot() {
+        var memory = wasm.memory();
+        return new Snapshot(
+                module,
+                memory.pages(),
+                memory.readBytes(0, dataHeapPtr),
+                baseHeapPtr,
+                dataHeapPtr,
+                dataAddr,
+                moduleData);
+    }
+
+    /**
+     * Creates a new instance of the module restoring the given snapshot, the memory is copied in
+     * bulk and the data is available without being parsed.
+     */
+    public static OpaPolicy fromSnapshot(OpaModule module, Snapshot snapshot) {
+        if (snapshot.module != module) {
+            throw new IllegalArgumentException("The snapshot has been taken from another module");
+        }
+
+        var policy = module.instantiate(snapshot.pages, false);
+        policy.wasm.memory().write(0, snapshot.memory);
+        policy.baseHeapPtr = snapshot.baseHeapPtr;
+        policy.dataHeapPtr = snapshot.dataHeapPtr;
+        policy.dataAddr = snapshot.dataAddr;
+        policy.moduleData = snapshot.moduleData;
+        policy.wasm.exports().opaHeapPtrSet(snapshot.dataHeapPtr);
+        return policy;
+    }
+
+    /**
+     * The state of an {@link OpaPolicy} captured by {@link #snapshot()}, immutable and shareable
+     * between threads.
+     */
+    public static final class Snapshot {
+        private final OpaModule module;
+        private final int pages;
+        private final byte[] memory;
+        private final int baseHeapPtr;
+        private final int dataHeapPtr;
+        private final int dataAddr;
+        private final boolean moduleData;
+
+        private Snapshot(
+                OpaModule module,
+                int pages,
+                byte[] memory,
+                int baseHeapPtr,
+                int dataHeapPtr,
+                int dataAddr,
+                boolean moduleData) {
+            this.module = module;
+            this.pages = pages;
+            this.memory = memory;
+            this.baseHeapPtr = baseHeapPtr;
+            this.dataHeapPtr = dataHeapPtr;
+            this.dataAddr = dataAddr;
+            this.moduleData = moduleData;
+        }
+
+        /** The number of pages of the linear memory at the time of the snapshot. */
+        public int pages() {
+            return pages;
+        }
+
+        /** The number of bytes of linear memory held by the snapshot. */
+        public int size() {
+            return memory.length;
+        }
+    }
+
     public static Builder builder() {
         return new Builder();
     }
 
+    private static final byte[] EMPTY_OBJECT = "{}".getBytes(StandardCharsets.UTF_8);
+
     // TODO: review the default min, max limits
     private static final int DEFAULT_MEMORY_INITIAL = 10;
     private static final int DEFAULT_MEMORY_MAX = MemoryLimits.MAX_PAGES;
 
     public static class Builder {
         private InputStream is;
+        private WasmModule precompiledModule;
+        private Function<Instance, Machine> precompiledMachineFactory;
         private ObjectMapper jsonMapper;
         private ObjectMapper yamlMapper;
 
@@ -210,6 +849,11 @@ public class OpaPolicy {
         private List<OpaBuiltin.Builtin> builtins = new ArrayList<>();
         protected boolean defaultBuiltins = true;
         private boolean enableCompiler = true;
+        private boolean fastEvaluation = true;
+        private boolean validateBuiltins;
+        private CompilerCache compilerCache;
+        private List<OpaBundle.DataFile> bundleData;
+        private MemoryPlanner memoryPlanner;
 
         private Builder() {}
 
@@ -230,6 +874,32 @@ public class OpaPolicy {
             return withPolicy(path.toFile());
         }
 
+        /**
+         * Loads an OPA bundle (e.g. built with {@code opa build -t wasm}): the gzipped tar is read
+         * in a single pass, the {@code policy.wasm} is used as the policy and the {@code data.json}
+         * files are merged, under the path of their directories, into the data document every
+         * instance starts with.
+         */
+        public Builder withBundle(InputStream bundle) {
+            OpaBundle read;
+            try {
+                read = OpaBundle.read(bundle);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Failed to read the bundle", e);
+            }
+            this.bundleData = read.data().isEmpty() ? null : read.data();
+            return withPolicy(read.policy());
+        }
+
+        public Builder withBundle(Path bundle) {
+            try {
+                return withBundle(Files.newInputStream(bundle));
+            } catch (IOException e) {
+                throw new IllegalArgumentException(
+                        "Failed to read the bundle at path: " + bundle, e);
+            }
+        }
+
         public Builder withPolicy(File file) {
             try {
                 return withPolicy(new FileInputStream(file));
@@ -238,6 +908,61 @@ public class OpaPolicy {
             }
         }
 
+        /**
+         * Uses a policy compiled at build time by the Endive compiler Maven plugin, no Wasm parsing
+         * nor bytecode generation happens at runtime.
+         *
+         * @param precompiled the generated class, exposing the static {@code WasmModule load()}
+         *     and {@code Machine create(Instance)} methods
+         */
+        public Builder withPrecompiled(Class<?> precompiled) {
+            // resolved once, the lookup only finds public static methods
+            MethodHandle load;
+            MethodHandle create;
+            try {
+                var lookup = MethodHandles.publicLookup();
+                load =
+                        lookup.findStatic(
+                                precompiled, "load", MethodType.methodType(WasmModule.class));
+                create =
+                        lookup.findStatic(
+                                precompiled,
+                                "create",
+                                MethodType.methodType(Machine.class, Instance.class));
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                throw new IllegalArgumentException(
+                        "Not a precompiled Wasm module, expected public static load() and"
+                                + " create(Instance) methods: "
+                                + precompiled.getName(),
+                        e);
+            }
+
+            WasmModule module;
+            try {
+                module = (WasmModule) load.invokeExact();
+            } catch (Throwable e) {
+                throw new RuntimeException("Failed to load " + precompiled.getName(), e);
+            }
+            return withPrecompiled(module, instance -> createMachine(create, instance));
+        }
+
+        public Builder withPrecompiled(
+                WasmModule module, Function<Instance, Machine> machineFactory) {
+            this.precompiledModule = module;
+            this.precompiledMachineFactory = machineFactory;
+            return this;
+        }
+
+        private static Machine createMachine(MethodHandle create, Instance instance) {
+            try {
+                return (Machine) create.invokeExact(instance);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException("Failed to create the machine", e);
+            }
+        }
+
         public Builder withJsonMapper(ObjectMapper jsonMapper) {
             this.jsonMapper = jsonMapper;
             return this;
@@ -258,6 +983,12 @@ public class OpaPolicy {
             return this;
         }
 
+        // the initial memory is raised to what the planner recommends, within the max memory
+        public Builder withMemoryPlanner(MemoryPlanner memoryPlanner) {
+            this.memoryPlanner = memoryPlanner;
+            return this;
+        }
+
         public Builder withDefaultBuiltins(boolean defaultBuiltins) {
             this.defaultBuiltins = defaultBuiltins;
             return this;
@@ -275,7 +1006,31 @@ public class OpaPolicy {
             return this;
         }
 
-        public OpaPolicy build() {
+        // always go through the multi-step evaluation
+        // even when the module exports "opa_eval"
+        public Builder disableFastEvaluation() {
+            this.fastEvaluation = false;
+            return this;
+        }
+
+        // the classes generated for the policy are stored in, and loaded from, the cache
+        public Builder withCompilerCache(CompilerCache compilerCache) {
+            this.compilerCache = compilerCache;
+            return this;
+        }
+
+        // building the module fails when the policy requires builtins that are not provided,
+        // by default the failure is deferred to when they are called, if ever
+        public Builder withBuiltinsValidation() {
+            this.validateBuiltins = true;
+            return this;
+        }
+
+        /**
+         * Parses and compiles the policy once, the returned {@link OpaModule} creates new instances
+         * without repeating that work.
+         */
+        public OpaModule buildModule() {
             // Default management
             if (jsonMapper == null) {
                 jsonMapper = DefaultMappers.jsonMapper;
@@ -283,23 +1038,50 @@ public class OpaPolicy {
             if (yamlMapper == null) {
                 yamlMapper = DefaultMappers.yamlMapper;
             }
-            Objects.requireNonNull(is);
-
-            var wasmBuilder =
-                    OpaWasm.builder()
-                            .withInputStream(is)
-                            .withJsonMapper(jsonMapper)
-                            .withYamlMapper(yamlMapper)
-                            .withMemory(
-                                    new ByteArrayMemory(new MemoryLimits(initialMemory, maxMemory)))
-                            .withDefaultBuiltins(defaultBuiltins)
-                            .addBuiltins(builtins.toArray(OpaBuiltin.Builtin[]::new));
-
-            if (!enableCompiler) {
-                wasmBuilder.disableCompiler();
+
+            WasmModule module;
+            Function<Instance, Machine> machineFactory = null;
+            if (precompiledModule != null) {
+                module = precompiledModule;
+                machineFactory = precompiledMachineFactory;
+            } else if (enableCompiler && compilerCache != null) {
+                Objects.requireNonNull(is);
+                var wasm = readAllBytes(is);
+                module = Parser.parse(wasm);
+                machineFactory = compilerCache.machineFactory(module, wasm);
+            } else {
+                Objects.requireNonNull(is);
+                module = Parser.parse(is);
+                if (enableCompiler) {
+                    machineFactory = MachineFactoryCompiler.builder(module).compile();
+                }
             }
 
-            return new OpaPolicy(wasmBuilder.build());
+            return new OpaModule(
+                    module,
+                    machineFactory,
+                    jsonMapper,
+                    yamlMapper,
+                    initialMemory,
+                    maxMemory,
+                    memoryPlanner,
+                    defaultBuiltins,
+                    builtins.toArray(OpaBuiltin.Builtin[]::new),
+                    validateBuiltins,
+                    fastEvaluation,
+                    bundleData);
+        }
+
+        public OpaPolicy build() {
+            return buildModule().instantiate();
+        }
+
+        private static byte[] readAllBytes(InputStream is) {
+            try (is) {
+                return is.readAllBytes();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read the policy", e);
+            }
         }
     }
 }
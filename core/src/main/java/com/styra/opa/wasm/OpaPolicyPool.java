@@ -1,8 +1,29 @@
 package com.styra.opa.wasm;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 /**
@@ -10,7 +31,8 @@ import java.util.function.Supplier;
  *
  * <p>Each {@link #borrow()} returns a {@link Loan} that must be {@linkplain Loan#close() closed}
  * (ideally via try-with-resources) to return the policy to the pool. The pool caps the number of
- * live instances and blocks callers when the limit is reached.
+ * live instances and blocks callers when the limit is reached, {@link #tryBorrow(Duration)} and
+ * {@link #borrowAsync()} wait up to a deadline or without blocking instead.
  *
  * <p>Uses only lock-free data structures and {@link Semaphore} internally — no {@code synchronized}
  * blocks — so it is safe to use with virtual threads (no carrier-thread pinning).
@@ -29,18 +51,61 @@ import java.util.function.Supplier;
  *
  * pool.close();
  * }</pre>
+ *
+ * <p>The pool can also own the data document, see {@link #data(String)}: idle instances keep it
+ * loaded and borrowers only need to provide the input.
+ *
+ * <p>New instances are created on the borrowing thread only when no idle one is available: {@link
+ * #prewarm(int)} and {@link Builder#withMinIdle(int)} create them ahead of time on the pool
+ * executor, where discarded instances are replaced as well to keep {@code minIdle} of them.
+ *
+ * <p>A new version of the policy is rolled out with {@link #swap(Supplier)}: the instances created
+ * by the same factory form a generation, new loans switch to the new generation once it's warm
+ * while the outstanding ones drain to the previous generation.
  */
 public final class OpaPolicyPool implements AutoCloseable {
 
-    private final ConcurrentLinkedDeque<OpaPolicy> idle;
     private final Semaphore permits;
-    private final Supplier<OpaPolicy> factory;
+    private final int maxSize;
+    private final int minIdle;
+    private final Executor executor;
+    private final Consumer<OpaPolicy> warmup;
+    private final int stripes;
+    private final int maxWaiters;
+    private final PoolMetrics metrics;
+    // eviction policies, 0 when disabled
+    private final long idleTimeoutNanos;
+    private final int maxPages;
+    private final long maxEvaluations;
+    private final long maxTotalPages;
+    // linear memory of the instances owned by the pool, idle or lent
+    private final AtomicLong totalPages = new AtomicLong();
+    // the borrowers waiting for a permit, served in arrival order
+    private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong generationIds = new AtomicLong();
+    // the generation new loans are served from
+    private final AtomicReference<Generation> generation;
     private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicLong dataVersions = new AtomicLong();
+    private final AtomicReference<PoolData> data = new AtomicReference<>();
 
-    private OpaPolicyPool(Supplier<OpaPolicy> factory, int maxSize) {
-        this.factory = factory;
-        this.idle = new ConcurrentLinkedDeque<>();
+    private OpaPolicyPool(Builder builder) {
+        this.maxSize = builder.maxSize;
+        this.minIdle = builder.minIdle;
+        this.executor = builder.executor;
+        this.warmup = builder.warmup;
+        this.stripes = builder.stripes;
+        this.maxWaiters = builder.maxWaiters;
+        this.metrics = builder.metrics;
+        this.idleTimeoutNanos = (builder.idleTimeout == null) ? 0 : builder.idleTimeout.toNanos();
+        this.maxPages = builder.maxPages;
+        this.maxEvaluations = builder.maxEvaluations;
+        this.maxTotalPages = builder.maxTotalPages;
         this.permits = new Semaphore(maxSize);
+        this.generation =
+                new AtomicReference<>(
+                        new Generation(generationIds.getAndIncrement(), builder.factory, stripes));
     }
 
     /**
@@ -51,10 +116,281 @@ public final class OpaPolicyPool implements AutoCloseable {
      * @param maxSize maximum number of concurrent instances
      */
     public static OpaPolicyPool create(Supplier<OpaPolicy> factory, int maxSize) {
-        if (maxSize <= 0) {
-            throw new IllegalArgumentException("maxSize must be positive, got: " + maxSize);
+        return builder(factory, maxSize).build();
+    }
+
+    /**
+     * Returns a builder for a pool of at most {@code maxSize} concurrent policy instances, to
+     * configure how instances are created ahead of time.
+     */
+    public static Builder builder(Supplier<OpaPolicy> factory, int maxSize) {
+        return new Builder(factory, maxSize);
+    }
+
+    /**
+     * Sets the data document owned by the pool.
+     *
+     * <p>From now on policies are lent with this data already loaded: instances keep it across
+     * loans and reload it only when it has been replaced by a later call. Borrowers that load their
+     * own data with {@link OpaPolicy#data(String)} get the pool data back on the next loan.
+     *
+     * @param data a well-formed stringified Json
+     */
+    public void data(String data) {
+        setData(policy -> policy.data(data));
+    }
+
+    /** Same as {@link #data(String)} with UTF-8 encoded Json. */
+    public void data(byte[] data) {
+        setData(policy -> policy.data(data));
+    }
+
+    /** Same as {@link #data(String)}, the document is serialized by each instance Json mapper. */
+    public void data(Object data) {
+        setData(policy -> policy.data(data));
+    }
+
+    private void setData(Consumer<OpaPolicy> loader) {
+        this.data.set(new PoolData(dataVersions.incrementAndGet(), loader));
+    }
+
+    /**
+     * Creates, in parallel on the pool executor, the instances needed to have {@code count} idle
+     * policies ready to be borrowed, never exceeding the pool maximum size.
+     *
+     * @return a future completed when all the instances have been created, or exceptionally if
+     *     any of them failed
+     */
+    public CompletableFuture<Void> prewarm(int count) {
+        if (closed.get()) {
+            throw new IllegalStateException("Pool is closed");
+        }
+        var gen = generation.get();
+        var created = new ArrayList<CompletableFuture<Void>>();
+        while (reserve(gen, count)) {
+            created.add(createIdle(gen));
+        }
+        return CompletableFuture.allOf(created.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Switches the pool to a new version of the policy, without downtime.
+     *
+     * <p>The instances of the new generation are created and warmed up in the background, as many
+     * as the current generation is using, then new loans are atomically switched to them. The
+     * outstanding loans are returned to the previous generation, whose instances are dropped as
+     * they come back.
+     *
+     * <p>Overlapping swaps are installed in the order they were started: a swap completing after a
+     * later one has been installed is dropped.
+     *
+     * @return a future completed with the id of the new generation once it serves the loans, or
+     *     exceptionally, leaving the current generation in place, if the instances can't be
+     *     created, a later swap has been installed or the pool has been closed meanwhile
+     */
+    public CompletableFuture<Long> swap(Supplier<OpaPolicy> factory) {
+        Objects.requireNonNull(factory);
+        if (closed.get()) {
+            throw new IllegalStateException("Pool is closed");
+        }
+        var next = new Generation(generationIds.getAndIncrement(), factory, stripes);
+        var current = generation.get();
+        var count =
+                Math.min(
+                        maxSize,
+                        Math.max(Math.max(minIdle, 1), current.idle.size() + current.lent.sum()));
+
+        var created = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < count; i++) {
+            next.pending.incrementAndGet();
+            created.add(createIdle(next));
+        }
+        return CompletableFuture.allOf(created.toArray(new CompletableFuture[0]))
+                .handle(
+                        (ignored, error) -> {
+                            if (error != null) {
+                                retire(next);
+                            } else if (closed.get()) {
+                                retire(next);
+                                throw new CompletionException(
+                                        new IllegalStateException("Pool is closed"));
+                            } else if (!install(next)) {
+                                retire(next);
+                                throw new CompletionException(
+                                        new IllegalStateException(
+                                                "Superseded by a later swap: " + next.id));
+                            }
+                            if (error instanceof CompletionException) {
+                                throw (CompletionException) error;
+                            } else if (error != null) {
+                                throw new CompletionException(error);
+                            }
+                            return next.id;
+                        });
+    }
+
+    /** Same as {@link #swap(Supplier)} with a module compiled ahead. */
+    public CompletableFuture<Long> swap(OpaModule module) {
+        return swap(module::instantiate);
+    }
+
+    /** The maximum number of concurrent instances. */
+    public int maxSize() {
+        return maxSize;
+    }
+
+    /** The number of idle instances ready to be borrowed. */
+    public int idle() {
+        return generation.get().idle.size();
+    }
+
+    /** The number of instances currently lent, or being handed to a borrower. */
+    public int inUse() {
+        return maxSize - permits.availablePermits();
+    }
+
+    /** The number of instances that can still be lent before borrowers have to wait. */
+    public int availablePermits() {
+        return permits.availablePermits();
+    }
+
+    /** The number of borrowers waiting for an instance. */
+    public int waiting() {
+        return waiting.get();
+    }
+
+    /** The linear memory, in 64KiB Wasm pages, of all the instances, idle or lent. */
+    public long totalPages() {
+        return totalPages.get();
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    // the entrypoints of the generation new loans are served from, null until an instance exists
+    Map<String, Integer> entrypoints() {
+        return generation.get().entrypoints;
+    }
+
+    /** The id of the generation new loans are served from, incremented by each swap. */
+    public long generation() {
+        return generation.get().id;
+    }
+
+    // reserves the creation of an instance as long as idle (and pending) instances
+    // are less than "target" and the pool stays within its maximum size
+    private boolean reserve(Generation gen, int target) {
+        while (true) {
+            var current = gen.pending.get();
+            var idleCount = gen.idle.size();
+            var lent = maxSize - permits.availablePermits();
+            if (idleCount + current >= target || idleCount + current + lent >= maxSize) {
+                return false;
+            }
+            if (gen.pending.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private CompletableFuture<Void> createIdle(Generation gen) {
+        try {
+            return CompletableFuture.runAsync(
+                    () -> {
+                        try {
+                            // borrowers may have created instances since the reservation,
+                            // don't pay for an instance there is no room for
+                            if (!hasRoom(gen)) {
+                                return;
+                            }
+                            var policy = newPolicy(gen);
+                            if (hasRoom(gen)) {
+                                policy.idleSince(System.nanoTime());
+                                gen.idle.offer(policy);
+                            } else {
+                                drop(policy);
+                            }
+                        } finally {
+                            gen.pending.decrementAndGet();
+                        }
+                    },
+                    executor);
+        } catch (RejectedExecutionException e) {
+            gen.pending.decrementAndGet();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // whether a reserved creation still fits, its pending slot included
+    private boolean hasRoom(Generation gen) {
+        return !closed.get()
+                && !gen.retired
+                && gen.idle.size() + gen.lent.sum() + gen.pending.get() <= maxSize;
+    }
+
+    // background creations are best effort: on failure the next borrow creates the
+    // instance inline and reports the error to the caller
+    private void refill(int target) {
+        if (closed.get()) {
+            return;
+        }
+        var gen = generation.get();
+        while (reserve(gen, target)) {
+            createIdle(gen);
+        }
+    }
+
+    private OpaPolicy newPolicy(Generation gen) {
+        var start = System.nanoTime();
+        var policy = gen.factory.get();
+        metrics.created(System.nanoTime() - start);
+        try {
+            if (warmup != null) {
+                warmup.accept(policy);
+                policy.reset();
+            }
+            loadData(policy);
+            account(policy);
+            if (gen.entrypoints == null) {
+                gen.entrypoints = policy.entrypoints();
+            }
+        } catch (RuntimeException e) {
+            drop(policy);
+            throw e;
+        }
+        return policy;
+    }
+
+    // tracks the growth of the instance memory in the pool total
+    private void account(OpaPolicy policy) {
+        var pages = policy.pages();
+        totalPages.addAndGet(pages - policy.accountedPages());
+        policy.accountedPages(pages);
+    }
+
+    private void drop(OpaPolicy policy) {
+        totalPages.addAndGet(-policy.accountedPages());
+        policy.accountedPages(0);
+    }
+
+    // instances grown too large, or too old, are replaced by fresh ones
+    private boolean exhausted(OpaPolicy policy) {
+        return (maxPages > 0 && policy.accountedPages() > maxPages)
+                || (maxEvaluations > 0 && policy.evaluations() >= maxEvaluations);
+    }
+
+    // over the memory limit instances are dropped, not replaced
+    private boolean overTotalPages() {
+        return maxTotalPages > 0 && totalPages.get() > maxTotalPages;
+    }
+
+    private void loadData(OpaPolicy policy) {
+        var current = data.get();
+        if (current != null && policy.dataVersion() != current.version) {
+            current.loader.accept(policy);
+            policy.dataVersion(current.version);
         }
-        return new OpaPolicyPool(factory, maxSize);
     }
 
     /**
@@ -66,37 +402,386 @@ public final class OpaPolicyPool implements AutoCloseable {
      * @throws InterruptedException if the calling thread is interrupted while waiting for an
      *     available permit
      * @throws IllegalStateException if the pool has been closed
+     * @throws RejectedExecutionException if the pool is at capacity and already has {@link
+     *     Builder#withMaxWaiters(int) maxWaiters} borrowers waiting
      */
     public Loan borrow() throws InterruptedException {
         if (closed.get()) {
             throw new IllegalStateException("Pool is closed");
         }
-        permits.acquire();
+        var start = System.nanoTime();
+        if (permits.tryAcquire()) {
+            return lendOrHandOff(start);
+        }
+        var waiter = enqueue(start);
         try {
-            OpaPolicy policy = idle.pollFirst();
-            if (policy == null) {
-                policy = factory.get();
+            return waiter.get();
+        } catch (InterruptedException e) {
+            abandon(waiter);
+            throw e;
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    /**
+     * Borrows a policy from the pool, waiting at most {@code timeout} if the pool is at capacity.
+     *
+     * @return the loan, or an empty optional if no policy became available before the timeout
+     * @throws InterruptedException if the calling thread is interrupted while waiting for an
+     *     available permit
+     * @throws IllegalStateException if the pool has been closed
+     * @throws RejectedExecutionException if the pool is at capacity and already has {@link
+     *     Builder#withMaxWaiters(int) maxWaiters} borrowers waiting
+     */
+    public Optional<Loan> tryBorrow(Duration timeout) throws InterruptedException {
+        Objects.requireNonNull(timeout);
+        if (closed.get()) {
+            throw new IllegalStateException("Pool is closed");
+        }
+        var start = System.nanoTime();
+        if (permits.tryAcquire()) {
+            return Optional.of(lendOrHandOff(start));
+        }
+        if (timeout.isZero() || timeout.isNegative()) {
+            metrics.timedOut();
+            return Optional.empty();
+        }
+        var waiter = enqueue(start);
+        try {
+            return Optional.of(waiter.get(toNanos(timeout), TimeUnit.NANOSECONDS));
+        } catch (TimeoutException e) {
+            metrics.timedOut();
+            abandon(waiter);
+            return Optional.empty();
+        } catch (InterruptedException e) {
+            abandon(waiter);
+            throw e;
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    /**
+     * Borrows a policy from the pool without blocking: the returned future is completed
+     * immediately when a policy is available, otherwise when one is returned to the pool, in the
+     * order the borrowers started waiting.
+     *
+     * <p>Dependent stages that are not {@code async} run on the thread returning the policy,
+     * cancelling the future, e.g. with {@link CompletableFuture#orTimeout}, gives up the wait.
+     *
+     * @return a future completed with the loan, or exceptionally with an {@link
+     *     IllegalStateException} if the pool is closed, a {@link RejectedExecutionException} if
+     *     {@link Builder#withMaxWaiters(int) maxWaiters} borrowers are already waiting, or the
+     *     error creating the policy
+     */
+    public CompletableFuture<Loan> borrowAsync() {
+        if (closed.get()) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Pool is closed"));
+        }
+        try {
+            var start = System.nanoTime();
+            if (permits.tryAcquire()) {
+                return CompletableFuture.completedFuture(lendOrHandOff(start));
+            }
+            return enqueue(start);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // called holding a permit
+    private Loan lend(long start) {
+        var gen = generation.get();
+        var stripe = gen.idle.stripe();
+        OpaPolicy policy = gen.idle.poll(stripe);
+        if (policy == null) {
+            policy = newPolicy(gen);
+        } else {
+            try {
+                loadData(policy);
+            } catch (RuntimeException e) {
+                // e.g. invalid data, the instance may be left in a bad state
+                drop(policy);
+                throw e;
             }
-            return new Loan(this, policy);
+        }
+        gen.lent.increment();
+        if (minIdle > 0) {
+            refill(minIdle);
+        }
+        var now = System.nanoTime();
+        metrics.borrowed(now - start);
+        return new Loan(this, gen, stripe, policy, now);
+    }
+
+    private Loan lendOrHandOff(long start) {
+        try {
+            return lend(start);
         } catch (RuntimeException t) {
-            permits.release();
+            handOff();
             throw t;
         }
     }
 
-    private void release(OpaPolicy policy) {
+    private Waiter enqueue(long start) {
+        while (true) {
+            var current = waiting.get();
+            if (current >= maxWaiters) {
+                metrics.rejected();
+                throw new RejectedExecutionException(
+                        "The pool is at capacity with " + current + " borrowers waiting");
+            }
+            if (waiting.compareAndSet(current, current + 1)) {
+                break;
+            }
+        }
+        var waiter = new Waiter(start);
+        waiters.offer(waiter);
+        if (closed.get() && waiters.remove(waiter)) {
+            waiting.decrementAndGet();
+            waiter.completeExceptionally(new IllegalStateException("Pool is closed"));
+            return waiter;
+        }
+        // cancelled or timed out, it doesn't hold its place in the queue any longer
+        waiter.whenComplete(
+                (loan, error) -> {
+                    if (error != null && waiters.remove(waiter)) {
+                        waiting.decrementAndGet();
+                        if (error instanceof TimeoutException) {
+                            metrics.timedOut();
+                        }
+                    }
+                });
+        // a permit released before the waiter was queued would be missed
+        if (permits.tryAcquire()) {
+            handOff();
+        }
+        return waiter;
+    }
+
+    // called holding a permit: it's passed to the first waiter, or back to the semaphore
+    private void handOff() {
+        while (true) {
+            var waiter = waiters.poll();
+            if (waiter == null) {
+                permits.release();
+                // a waiter queued between the poll and the release would be missed
+                if (waiters.isEmpty() || !permits.tryAcquire()) {
+                    return;
+                }
+                continue;
+            }
+            waiting.decrementAndGet();
+            if (waiter.isDone()) {
+                continue;
+            }
+            if (closed.get()) {
+                waiter.completeExceptionally(new IllegalStateException("Pool is closed"));
+                continue;
+            }
+
+            Loan loan;
+            try {
+                loan = lend(waiter.start);
+            } catch (RuntimeException e) {
+                // the permit still goes to the next waiter
+                waiter.completeExceptionally(e);
+                continue;
+            }
+            if (!waiter.complete(loan)) {
+                // cancelled in the meantime
+                loan.close();
+            }
+            return;
+        }
+    }
+
+    // gives up waiting, returning the loan if it has been completed in the meantime
+    private static void abandon(CompletableFuture<Loan> waiter) {
+        if (!waiter.cancel(false) && !waiter.isCompletedExceptionally()) {
+            waiter.join().close();
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new CompletionException(cause);
+    }
+
+    private static long toNanos(Duration timeout) {
+        try {
+            return timeout.toNanos();
+        } catch (ArithmeticException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private void release(Generation gen, int stripe, OpaPolicy policy, long borrowedAt) {
+        var now = System.nanoTime();
+        metrics.returned(now - borrowedAt);
+        var exhausted = false;
         try {
-            policy.reset();
-            if (!closed.get()) {
-                idle.offerFirst(policy);
+            gen.lent.decrement();
+            // the instances of a previous generation are dropped as they come back
+            if (closed.get() || gen.retired) {
+                drop(policy);
+                return;
+            }
+            account(policy);
+            exhausted = exhausted(policy);
+            var evicted = exhausted;
+            if (!exhausted && overTotalPages()) {
+                // the least recently used idle instances go first
+                trimIdle(gen);
+                evicted = overTotalPages();
+            }
+            if (evicted) {
+                drop(policy);
+                metrics.evicted();
+            } else {
+                if (data.get() != null) {
+                    // keep the data resident, it's reloaded on borrow only when stale
+                    policy.rewind();
+                } else {
+                    policy.reset();
+                }
+                policy.idleSince(now);
+                gen.idle.offer(stripe, policy);
             }
         } finally {
-            permits.release();
+            handOff();
+        }
+        if (exhausted) {
+            // the idle instances in excess are dropped too
+            trimIdle(gen);
+            replace();
+        }
+    }
+
+    private void discard(Generation gen, OpaPolicy policy, long borrowedAt) {
+        metrics.discarded(System.nanoTime() - borrowedAt);
+        gen.lent.decrement();
+        drop(policy);
+        handOff();
+        replace();
+    }
+
+    // replaced in the background up to minIdle, beyond that instances are created on demand
+    private void replace() {
+        refill(minIdle);
+    }
+
+    // drops the least recently used idle instances while the pool is over its memory limit
+    private void trimIdle(Generation gen) {
+        while (overTotalPages()) {
+            var policy = gen.idle.pollLeastRecentlyUsed();
+            if (policy == null) {
+                return;
+            }
+            drop(policy);
+            metrics.evicted();
         }
     }
 
-    private void discard() {
-        permits.release();
+    // drops the instances idle for longer than the timeout, keeping at least minIdle
+    private void evictIdle() {
+        if (closed.get()) {
+            return;
+        }
+        var gen = generation.get();
+        var deadline = System.nanoTime() - idleTimeoutNanos;
+        while (gen.idle.size() > minIdle) {
+            var policy = gen.idle.pollIdleSince(deadline);
+            if (policy == null) {
+                break;
+            }
+            drop(policy);
+            metrics.evicted();
+        }
+        scheduleEviction();
+    }
+
+    // drops the idle instances beyond minIdle, e.g. to reclaim their memory
+    void dropIdle() {
+        var gen = generation.get();
+        while (gen.idle.size() > minIdle) {
+            var policy = gen.idle.pollLeastRecentlyUsed();
+            if (policy == null) {
+                break;
+            }
+            drop(policy);
+            metrics.evicted();
+        }
+    }
+
+    private void scheduleEviction() {
+        if (idleTimeoutNanos == 0 || closed.get()) {
+            return;
+        }
+        var period = Math.max(TimeUnit.MILLISECONDS.toNanos(10), idleTimeoutNanos / 2);
+        try {
+            CompletableFuture.delayedExecutor(period, TimeUnit.NANOSECONDS, executor)
+                    .execute(this::evictIdle);
+        } catch (RejectedExecutionException e) {
+            // the executor is shutting down
+        }
+    }
+
+    // switches to the generation unless a later one is already in place
+    private boolean install(Generation next) {
+        while (true) {
+            var current = generation.get();
+            if (current.id > next.id) {
+                return false;
+            }
+            if (generation.compareAndSet(current, next)) {
+                retire(current);
+                return true;
+            }
+        }
+    }
+
+    private void retire(Generation gen) {
+        gen.retired = true;
+        OpaPolicy policy;
+        while ((policy = gen.idle.pollLeastRecentlyUsed()) != null) {
+            drop(policy);
+        }
+    }
+
+    /**
+     * Evaluates a stream of inputs, see {@link #evaluate(Flow.Publisher, StreamOptions)}, with the
+     * default options.
+     */
+    public Flow.Publisher<String> evaluate(Flow.Publisher<?> inputs) {
+        return evaluate(inputs, StreamOptions.builder().build());
+    }
+
+    /**
+     * Returns a publisher of the results of the evaluation of each input, e.g. the records of a
+     * Kafka topic, against the pool data.
+     *
+     * <p>Inputs can be {@code String}s or {@code byte[]}s of well-formed Json, any other object is
+     * serialized with the configured Json mapper, see {@link OpaPolicy#evaluateBatch(List)}. The
+     * inputs are evaluated in batches, on up to {@link StreamOptions.Builder#withParallelism(int)
+     * parallelism} instances at once, each batch in a single loan. Inputs are requested from
+     * {@code inputs} only as the subscriber demand allows, the results are emitted in the order of
+     * the inputs unless {@link StreamOptions.Builder#withOrdered(boolean) ordered} is disabled.
+     *
+     * <p>An evaluation error, or an error of {@code inputs}, terminates the stream with that error.
+     * An entrypoint not defined in the policy fails the subscription with an {@link
+     * IllegalArgumentException}, before any instance is borrowed once the pool has created one.
+     * Each subscription subscribes to {@code inputs} again.
+     */
+    public Flow.Publisher<String> evaluate(Flow.Publisher<?> inputs, StreamOptions options) {
+        Objects.requireNonNull(inputs);
+        Objects.requireNonNull(options);
+        return new EvaluationPublisher(this, inputs, options);
     }
 
     /**
@@ -106,7 +791,401 @@ public final class OpaPolicyPool implements AutoCloseable {
     @Override
     public void close() {
         if (closed.compareAndSet(false, true)) {
-            idle.clear();
+            var gen = generation.get();
+            OpaPolicy policy;
+            while ((policy = gen.idle.pollLeastRecentlyUsed()) != null) {
+                drop(policy);
+            }
+            Waiter waiter;
+            while ((waiter = waiters.poll()) != null) {
+                waiting.decrementAndGet();
+                waiter.completeExceptionally(new IllegalStateException("Pool is closed"));
+            }
+        }
+    }
+
+    /** Builder for an {@link OpaPolicyPool}, see {@link #builder(Supplier, int)}. */
+    public static final class Builder {
+        private final Supplier<OpaPolicy> factory;
+        private final int maxSize;
+        private int minIdle;
+        private Executor executor = ForkJoinPool.commonPool();
+        private Consumer<OpaPolicy> warmup;
+        private int stripes = 1;
+        private int maxWaiters = Integer.MAX_VALUE;
+        private PoolMetrics metrics = PoolMetrics.NOOP;
+        private Duration idleTimeout;
+        private int maxPages;
+        private long maxEvaluations;
+        private long maxTotalPages;
+
+        private Builder(Supplier<OpaPolicy> factory, int maxSize) {
+            this.factory = factory;
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Keeps at least {@code minIdle} instances ready to be borrowed, creating them in the
+         * background on the pool executor, starting from when the pool is built.
+         */
+        public Builder withMinIdle(int minIdle) {
+            this.minIdle = minIdle;
+            return this;
+        }
+
+        /**
+         * The executor creating instances ahead of time, defaults to the {@link
+         * ForkJoinPool#commonPool() common pool}.
+         */
+        public Builder withExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Runs on each new instance before it's lent, e.g. an evaluation of a representative input
+         * so that the policy code is hot before the first request. The instance is reset
+         * afterwards.
+         */
+        public Builder withWarmup(Consumer<OpaPolicy> warmup) {
+            this.warmup = warmup;
+            return this;
+        }
+
+        /**
+         * Splits the idle instances in {@code stripes} queues, picked by thread, so that many
+         * concurrent borrowers don't all poll the same queue, e.g. one per core with {@code
+         * Runtime.getRuntime().availableProcessors()}. Defaults to a single queue. The permits
+         * bounding the pool size stay shared by all the stripes.
+         *
+         * <p>Instances are returned to the stripe of the borrowing thread, so that platform threads
+         * tend to reuse the same instances. Virtual threads, e.g. the ones of {@link
+         * OpaEvaluator}, don't get that affinity: the stripes only spread their contention.
+         */
+        public Builder withStripes(int stripes) {
+            this.stripes = stripes;
+            return this;
+        }
+
+        /**
+         * Rejects borrowers with a {@link RejectedExecutionException} when the pool is at capacity
+         * and {@code maxWaiters} are already waiting, so that an overload is shed right away
+         * instead of queuing. Defaults to no limit.
+         */
+        public Builder withMaxWaiters(int maxWaiters) {
+            this.maxWaiters = maxWaiters;
+            return this;
+        }
+
+        /**
+         * Reports the borrow wait and hold times, the instance creations, discards and rejections
+         * to {@code metrics}, e.g. a {@link PoolMetricsRecorder}.
+         */
+        public Builder withMetrics(PoolMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Drops the instances that stayed idle for longer than {@code idleTimeout}, keeping at
+         * least {@link #withMinIdle(int) minIdle} of them. The idle instances are checked
+         * periodically on the pool executor.
+         */
+        public Builder withIdleTimeout(Duration idleTimeout) {
+            this.idleTimeout = idleTimeout;
+            return this;
+        }
+
+        /**
+         * Replaces the instances whose linear memory has grown beyond {@code maxPages} 64KiB Wasm
+         * pages when they are returned: the memory of an instance never shrinks, e.g. after a
+         * single huge input.
+         */
+        public Builder withMaxPages(int maxPages) {
+            this.maxPages = maxPages;
+            return this;
+        }
+
+        /** Replaces the instances when they are returned after {@code maxEvaluations}. */
+        public Builder withMaxEvaluations(long maxEvaluations) {
+            this.maxEvaluations = maxEvaluations;
+            return this;
+        }
+
+        /**
+         * Caps the linear memory of all the instances of the pool to {@code maxTotalPages} 64KiB
+         * Wasm pages: over the limit, the least recently used idle instances are dropped, then the
+         * returned ones if that's not enough, without being replaced. A lent instance can't be
+         * reclaimed, the limit can be exceeded until it's returned.
+         */
+        public Builder withMaxTotalPages(long maxTotalPages) {
+            this.maxTotalPages = maxTotalPages;
+            return this;
+        }
+
+        public OpaPolicyPool build() {
+            Objects.requireNonNull(factory);
+            Objects.requireNonNull(executor);
+            Objects.requireNonNull(metrics);
+            if (maxSize <= 0) {
+                throw new IllegalArgumentException("maxSize must be positive, got: " + maxSize);
+            }
+            if (minIdle < 0 || minIdle > maxSize) {
+                throw new IllegalArgumentException(
+                        "minIdle must be between 0 and maxSize, got: " + minIdle);
+            }
+            if (stripes <= 0) {
+                throw new IllegalArgumentException("stripes must be positive, got: " + stripes);
+            }
+            if (maxWaiters < 0) {
+                throw new IllegalArgumentException(
+                        "maxWaiters must not be negative, got: " + maxWaiters);
+            }
+            if (idleTimeout != null && (idleTimeout.isZero() || idleTimeout.isNegative())) {
+                throw new IllegalArgumentException(
+                        "idleTimeout must be positive, got: " + idleTimeout);
+            }
+            if (maxPages < 0 || maxEvaluations < 0 || maxTotalPages < 0) {
+                throw new IllegalArgumentException(
+                        "maxPages, maxEvaluations and maxTotalPages must not be negative");
+            }
+            var pool = new OpaPolicyPool(this);
+            metrics.bind(pool);
+            pool.refill(minIdle);
+            pool.scheduleEviction();
+            return pool;
+        }
+    }
+
+    /** The options of {@link #evaluate(Flow.Publisher, StreamOptions)}. */
+    public static final class StreamOptions {
+        private final int parallelism;
+        private final int batchSize;
+        private final boolean ordered;
+        private final String entrypoint;
+        private final Executor executor;
+
+        private StreamOptions(Builder builder) {
+            this.parallelism = builder.parallelism;
+            this.batchSize = builder.batchSize;
+            this.ordered = builder.ordered;
+            this.entrypoint = builder.entrypoint;
+            this.executor = builder.executor;
+        }
+
+        public static Builder builder() {
+            return new Builder();
+        }
+
+        int parallelism(OpaPolicyPool pool) {
+            return (parallelism == 0) ? pool.maxSize : parallelism;
+        }
+
+        int batchSize() {
+            return batchSize;
+        }
+
+        boolean ordered() {
+            return ordered;
+        }
+
+        String entrypoint() {
+            return entrypoint;
+        }
+
+        Executor executor(OpaPolicyPool pool) {
+            return (executor == null) ? pool.executor : executor;
+        }
+
+        /** Builder for {@link StreamOptions}. */
+        public static final class Builder {
+            private int parallelism;
+            private int batchSize = 64;
+            private boolean ordered = true;
+            private String entrypoint;
+            private Executor executor;
+
+            private Builder() {}
+
+            /**
+             * The number of instances evaluating at once, defaults to (or 0 for) the pool maximum
+             * size.
+             */
+            public Builder withParallelism(int parallelism) {
+                this.parallelism = parallelism;
+                return this;
+            }
+
+            /**
+             * The maximum number of inputs evaluated in a single loan, defaults to 64. Batches
+             * are only filled when all the instances are busy, so that inputs are not delayed.
+             */
+            public Builder withBatchSize(int batchSize) {
+                this.batchSize = batchSize;
+                return this;
+            }
+
+            /**
+             * Emits the results in the order of the inputs, the default. When disabled the results
+             * are emitted as soon as their batch is evaluated, a slow batch doesn't hold back the
+             * following ones.
+             */
+            public Builder withOrdered(boolean ordered) {
+                this.ordered = ordered;
+                return this;
+            }
+
+            /** The entrypoint to evaluate, defaults to the policy default entrypoint. */
+            public Builder withEntrypoint(String entrypoint) {
+                this.entrypoint = entrypoint;
+                return this;
+            }
+
+            /** The executor running the evaluations, defaults to the pool executor. */
+            public Builder withExecutor(Executor executor) {
+                this.executor = executor;
+                return this;
+            }
+
+            public StreamOptions build() {
+                if (parallelism < 0) {
+                    throw new IllegalArgumentException(
+                            "parallelism must not be negative, got: " + parallelism);
+                }
+                if (batchSize <= 0) {
+                    throw new IllegalArgumentException(
+                            "batchSize must be positive, got: " + batchSize);
+                }
+                return new StreamOptions(this);
+            }
+        }
+    }
+
+    // the instances created by the same factory
+    private static final class Generation {
+        private final long id;
+        private final Supplier<OpaPolicy> factory;
+        private final IdleInstances idle;
+        // instances being created in the background
+        private final AtomicInteger pending = new AtomicInteger();
+        // striped, like the idle count, it's only summed up off the borrow path
+        private final LongAdder lent = new LongAdder();
+        // replaced by a newer generation, its instances are not reused
+        private volatile boolean retired;
+        // shared by all the instances, known once the first one has been created
+        private volatile Map<String, Integer> entrypoints;
+
+        private Generation(long id, Supplier<OpaPolicy> factory, int stripes) {
+            this.id = id;
+            this.factory = factory;
+            this.idle = new IdleInstances(stripes);
+        }
+    }
+
+    // The idle instances, optionally split in stripes to spread the contention of
+    // borrowers running on many cores: each thread polls its own stripe first and
+    // steals from the others when empty, instances are returned to the stripe of
+    // the borrower, so they tend to stay on the same threads with warm memory pages.
+    // Virtual threads are short-lived and each gets its own id, their borrows are spread
+    // across the stripes without any affinity. Each stripe is ordered from the most to the
+    // least recently returned instance, new instances included.
+    private static final class IdleInstances {
+        private final ConcurrentLinkedDeque<OpaPolicy>[] stripes;
+        // spreads the instances created in the background
+        private final AtomicInteger next = new AtomicInteger();
+        // the size of ConcurrentLinkedDeque walks the whole deque, and a single counter
+        // would be contended by all the borrowers
+        private final LongAdder count = new LongAdder();
+
+        @SuppressWarnings("unchecked")
+        private IdleInstances(int stripes) {
+            this.stripes = new ConcurrentLinkedDeque[stripes];
+            for (int i = 0; i < stripes; i++) {
+                this.stripes[i] = new ConcurrentLinkedDeque<>();
+            }
+        }
+
+        private int stripe() {
+            if (stripes.length == 1) {
+                return 0;
+            }
+            var hash = Long.hashCode(Thread.currentThread().getId() * 0x9E3779B97F4A7C15L);
+            return Math.floorMod(hash, stripes.length);
+        }
+
+        private OpaPolicy poll(int stripe) {
+            var policy = stripes[stripe].pollFirst();
+            for (int i = 1; policy == null && i < stripes.length; i++) {
+                // the least recently used instance of another stripe
+                policy = stripes[(stripe + i) % stripes.length].pollLast();
+            }
+            return taken(policy);
+        }
+
+        // counted before being queued, so that the count never goes below the actual size
+        private void offer(int stripe, OpaPolicy policy) {
+            count.increment();
+            stripes[stripe].offerFirst(policy);
+        }
+
+        // new instances are the most recently stamped, eviction takes them last
+        private void offer(OpaPolicy policy) {
+            offer(Math.floorMod(next.getAndIncrement(), stripes.length), policy);
+        }
+
+        private int size() {
+            return (int) count.sum();
+        }
+
+        private OpaPolicy taken(OpaPolicy policy) {
+            if (policy != null) {
+                count.decrement();
+            }
+            return policy;
+        }
+
+        // stripes are ordered from the most to the least recently used instance
+        private OpaPolicy pollLeastRecentlyUsed() {
+            var start = Math.floorMod(next.getAndIncrement(), stripes.length);
+            for (int i = 0; i < stripes.length; i++) {
+                var policy = stripes[(start + i) % stripes.length].pollLast();
+                if (policy != null) {
+                    return taken(policy);
+                }
+            }
+            return null;
+        }
+
+        // an instance returned before "deadline", if any
+        private OpaPolicy pollIdleSince(long deadline) {
+            for (var stripe : stripes) {
+                var policy = stripe.peekLast();
+                if (policy != null
+                        && policy.idleSince() - deadline < 0
+                        && stripe.removeLastOccurrence(policy)) {
+                    return taken(policy);
+                }
+            }
+            return null;
+        }
+    }
+
+    // a borrower waiting for a permit since "start"
+    private static final class Waiter extends CompletableFuture<Loan> {
+        private final long start;
+
+        private Waiter(long start) {
+            this.start = start;
+        }
+    }
+
+    private static final class PoolData {
+        private final long version;
+        private final Consumer<OpaPolicy> loader;
+
+        private PoolData(long version, Consumer<OpaPolicy> loader) {
+            this.version = version;
+            this.loader = loader;
         }
     }
 
@@ -119,11 +1198,31 @@ public final class OpaPolicyPool implements AutoCloseable {
      */
     public static final class Loan implements AutoCloseable {
         private final OpaPolicyPool pool;
+        private final Generation generation;
+        private final int stripe;
+        private final long borrowedAt;
         private OpaPolicy policy;
+        private Runnable onReturn;
 
-        Loan(OpaPolicyPool pool, OpaPolicy policy) {
+        Loan(
+                OpaPolicyPool pool,
+                Generation generation,
+                int stripe,
+                OpaPolicy policy,
+                long borrowedAt) {
             this.pool = pool;
+            this.generation = generation;
+            this.stripe = stripe;
             this.policy = policy;
+            this.borrowedAt = borrowedAt;
+        }
+
+        /**
+         * The id of the generation the policy belongs to, e.g. to tag the decisions with the
+         * version of the policy that produced them.
+         */
+        public long generation() {
+            return generation.id;
         }
 
         /**
@@ -138,12 +1237,18 @@ public final class OpaPolicyPool implements AutoCloseable {
             return policy;
         }
 
+        // run once the policy is returned or discarded, e.g. to free a slot of the scheduler
+        void onReturn(Runnable onReturn) {
+            this.onReturn = onReturn;
+        }
+
         /** Returns the policy to the pool for reuse. */
         @Override
         public void close() {
             if (policy != null) {
-                pool.release(policy);
+                pool.release(generation, stripe, policy, borrowedAt);
                 policy = null;
+                returned();
             }
         }
 
@@ -153,8 +1258,15 @@ public final class OpaPolicyPool implements AutoCloseable {
          */
         public void discard() {
             if (policy != null) {
-                pool.discard();
+                pool.discard(generation, policy, borrowedAt);
                 policy = null;
+                returned();
+            }
+        }
+
+        private void returned() {
+            if (onReturn != null) {
+                onReturn.run();
             }
         }
     }
@@ -0,0 +1,462 @@
+package com.styra.opa.wasm;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Policies of many tenants, each one served by its own {@link OpaPolicyPool}, loaded on first use
+ * and evicted when unused.
+ *
+ * <pre>{@code
+ * var registry = OpaPolicyRegistry.<String>builder(tenant -> storage.readPolicy(tenant))
+ *         .withMaxModuleBytes(512L * 1024 * 1024)
+ *         .withMaxTotalPages(16 * 1024) // 1GiB of linear memory
+ *         .build();
+ *
+ * try (var loan = registry.borrow("tenant-42")) {
+ *     String result = loan.policy().evaluate(input);
+ * }
+ * }</pre>
+ *
+ * <p>The loader returns the Wasm binary of a key (or any other bytes the {@link
+ * Builder#withModuleFactory(Function) module factory} understands, e.g. a bundle). Identical
+ * binaries, by SHA-256, are compiled once and the {@link OpaModule} is shared by the pools of all
+ * the keys using it.
+ *
+ * <p>When the registry goes over one of its budgets (number of keys, size of the distinct modules,
+ * linear memory of all the instances), the idle instances of the least recently used keys are
+ * dropped first, then the least recently used keys are evicted altogether: their pools are closed,
+ * and their modules released once no other key uses them. Over the size of the modules, all the
+ * keys of the least recently used module are evicted together. An evicted key is loaded again on
+ * its next use.
+ *
+ * <p>Like the pools, the registry only uses lock-free data structures: a key is loaded by the first
+ * thread that needs it while the other threads wait for it, without holding any lock.
+ */
+public final class OpaPolicyRegistry<K> implements AutoCloseable {
+    // the linear memory grows with the evaluations, it's checked at most this often
+    private static final long TRIM_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Function<K, byte[]> loader;
+    private final Function<byte[], OpaModule> moduleFactory;
+    private final Function<OpaModule, OpaPolicyPool> poolFactory;
+    private final int maxEntries;
+    private final long maxModuleBytes;
+    private final long maxTotalPages;
+
+    private final ConcurrentHashMap<K, Entry<K>> entries = new ConcurrentHashMap<>();
+    // content hash -> module, shared by the keys with the same binary
+    private final ConcurrentHashMap<String, SharedModule> modules = new ConcurrentHashMap<>();
+    private final AtomicLong moduleBytes = new AtomicLong();
+    private final AtomicLong lastTrim = new AtomicLong(System.nanoTime());
+    private final AtomicBoolean trimming = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private OpaPolicyRegistry(Builder<K> builder) {
+        this.loader = builder.loader;
+        this.moduleFactory = builder.moduleFactory;
+        this.poolFactory = builder.poolFactory;
+        this.maxEntries = builder.maxEntries;
+        this.maxModuleBytes = builder.maxModuleBytes;
+        this.maxTotalPages = builder.maxTotalPages;
+    }
+
+    /**
+     * Returns a builder of a registry loading the policy of a key with {@code loader}, called
+     * outside any lock so it may safely do expensive work (e.g. reading from a remote storage).
+     */
+    public static <K> Builder<K> builder(Function<K, byte[]> loader) {
+        return new Builder<>(loader);
+    }
+
+    /**
+     * Returns the pool of {@code key}, loading its policy on first use.
+     *
+     * <p>The pool is closed if the key is evicted or invalidated: prefer {@link #borrow(Object)},
+     * or don't hold on the pool.
+     *
+     * @throws IllegalStateException if the registry has been closed
+     * @throws RuntimeException the error of the loader, or of the module or pool factory
+     */
+    public OpaPolicyPool pool(K key) {
+        Objects.requireNonNull(key);
+        if (closed.get()) {
+            throw new IllegalStateException("Registry is closed");
+        }
+        var entry = entries.computeIfAbsent(key, Entry::new);
+        entry.lastUsed = System.nanoTime();
+        if (entry.loading.compareAndSet(false, true)) {
+            load(entry);
+            trim(entry);
+        } else if (System.nanoTime() - lastTrim.get() > TRIM_INTERVAL_NANOS) {
+            trim(entry);
+        }
+        try {
+            return entry.pool.join();
+        } catch (CompletionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    /**
+     * Borrows a policy of {@code key}, see {@link OpaPolicyPool#borrow()}, loading it on first use.
+     */
+    public OpaPolicyPool.Loan borrow(K key) throws InterruptedException {
+        while (true) {
+            var pool = pool(key);
+            try {
+                return pool.borrow();
+            } catch (IllegalStateException e) {
+                // evicted in the meantime, loaded again
+                if (!pool.isClosed() || closed.get()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /** Drops the pool of {@code key}, e.g. when its policy changed, it's loaded again on next use. */
+    public void invalidate(K key) {
+        var entry = entries.remove(key);
+        if (entry != null) {
+            retire(entry);
+        }
+    }
+
+    /** The number of keys loaded, or being loaded. */
+    public int size() {
+        return entries.size();
+    }
+
+    /** The number of distinct modules held by the registry. */
+    public int modules() {
+        return modules.size();
+    }
+
+    /** The size of the binaries of the distinct modules held by the registry. */
+    public long moduleBytes() {
+        return moduleBytes.get();
+    }
+
+    /** The linear memory, in 64KiB Wasm pages, of the instances of all the pools. */
+    public long totalPages() {
+        long pages = 0;
+        for (var entry : entries.values()) {
+            var pool = entry.loaded();
+            if (pool != null) {
+                pages += pool.totalPages();
+            }
+        }
+        return pages;
+    }
+
+    private void load(Entry<K> entry) {
+        SharedModule shared = null;
+        try {
+            var bytes = Objects.requireNonNull(loader.apply(entry.key), "loader returned null");
+            shared = acquire(bytes);
+            entry.shared = shared;
+            var pool = Objects.requireNonNull(poolFactory.apply(join(shared.module)));
+            entry.pool.complete(pool);
+        } catch (RuntimeException | Error e) {
+            // not cached, the next use tries again
+            entries.remove(entry.key, entry);
+            if (shared != null) {
+                release(shared);
+            }
+            entry.pool.completeExceptionally(e);
+            return;
+        }
+        // invalidated or closed while loading
+        if (entries.get(entry.key) != entry || closed.get()) {
+            retire(entry);
+        }
+    }
+
+    private SharedModule acquire(byte[] bytes) {
+        var hash = CompilerCache.sha256(bytes);
+        var created = new boolean[1];
+        var shared =
+                modules.compute(
+                        hash,
+                        (h, existing) -> {
+                            var module = existing;
+                            if (module == null) {
+                                module = new SharedModule(h, bytes.length);
+                                created[0] = true;
+                            }
+                            module.refs++;
+                            return module;
+                        });
+        if (created[0]) {
+            moduleBytes.addAndGet(bytes.length);
+            try {
+                shared.module.complete(moduleFactory.apply(bytes));
+            } catch (RuntimeException | Error e) {
+                // compiled again by the next key using it
+                if (modules.remove(hash, shared)) {
+                    moduleBytes.addAndGet(-shared.size);
+                }
+                shared.module.completeExceptionally(e);
+            }
+        }
+        return shared;
+    }
+
+    private void release(SharedModule shared) {
+        var removed = new boolean[1];
+        modules.computeIfPresent(
+                shared.hash,
+                (h, module) -> {
+                    if (module != shared || --module.refs > 0) {
+                        return module;
+                    }
+                    removed[0] = true;
+                    return null;
+                });
+        if (removed[0]) {
+            moduleBytes.addAndGet(-shared.size);
+        }
+    }
+
+    // the outstanding loans are returned to the closed pool
+    private void retire(Entry<K> entry) {
+        if (!entry.retired.compareAndSet(false, true)) {
+            return;
+        }
+        entry.pool.whenComplete(
+                (pool, error) -> {
+                    if (pool != null) {
+                        pool.close();
+                        release(entry.shared);
+                    }
+                });
+    }
+
+    private boolean overBudget(long pages) {
+        return overKeyBudget(pages) || overModuleBudget();
+    }
+
+    // the budgets that evicting any key helps with
+    private boolean overKeyBudget(long pages) {
+        return (maxEntries > 0 && entries.size() > maxEntries)
+                || (maxTotalPages > 0 && pages > maxTotalPages);
+    }
+
+    private boolean overModuleBudget() {
+        return maxModuleBytes > 0 && moduleBytes.get() > maxModuleBytes;
+    }
+
+    // reclaims the memory of the least recently used keys, but "current"
+    private void trim(Entry<K> current) {
+        if (!trimming.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            lastTrim.set(System.nanoTime());
+            var pages = (maxTotalPages > 0) ? totalPages() : 0;
+            if (!overBudget(pages)) {
+                return;
+            }
+
+            var candidates = new ArrayList<Entry<K>>();
+            for (var entry : entries.values()) {
+                if (entry != current && entry.loaded() != null) {
+                    candidates.add(entry);
+                }
+            }
+            var now = System.nanoTime();
+            candidates.sort(Comparator.comparingLong(e -> e.lastUsed - now));
+
+            // idle instances first, they are recreated cheaply from the module
+            if (maxTotalPages > 0) {
+                for (var entry : candidates) {
+                    if (pages <= maxTotalPages) {
+                        break;
+                    }
+                    var pool = entry.loaded();
+                    var before = pool.totalPages();
+                    pool.dropIdle();
+                    pages -= before - pool.totalPages();
+                }
+            }
+            for (var entry : candidates) {
+                if (!overKeyBudget(pages)) {
+                    break;
+                }
+                if (entries.remove(entry.key, entry)) {
+                    pages -= entry.loaded().totalPages();
+                    retire(entry);
+                }
+            }
+
+            // a module is only released with the last key using it, its keys are evicted together
+            if (overModuleBudget()) {
+                var byModule = new LinkedHashMap<SharedModule, List<Entry<K>>>();
+                for (var entry : candidates) {
+                    if (entry.shared != current.shared && entries.get(entry.key) == entry) {
+                        byModule.computeIfAbsent(entry.shared, m -> new ArrayList<>()).add(entry);
+                    }
+                }
+                // by the most recent use of any of their keys, the last one of each list
+                var modules = new ArrayList<>(byModule.values());
+                modules.sort(
+                        Comparator.comparingLong(keys -> keys.get(keys.size() - 1).lastUsed - now));
+                for (var keys : modules) {
+                    if (!overModuleBudget()) {
+                        break;
+                    }
+                    for (var entry : keys) {
+                        if (entries.remove(entry.key, entry)) {
+                            retire(entry);
+                        }
+                    }
+                }
+            }
+        } finally {
+            trimming.set(false);
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new CompletionException(cause);
+    }
+
+    /** Closes the pools of all the keys. */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            for (var entry : entries.values()) {
+                if (entries.remove(entry.key, entry)) {
+                    retire(entry);
+                }
+            }
+        }
+    }
+
+    /** Builder for an {@link OpaPolicyRegistry}, see {@link #builder(Function)}. */
+    public static final class Builder<K> {
+        private final Function<K, byte[]> loader;
+        private Function<byte[], OpaModule> moduleFactory =
+                bytes -> OpaPolicy.builder().withPolicy(bytes).buildModule();
+        private Function<OpaModule, OpaPolicyPool> poolFactory =
+                module ->
+                        OpaPolicyPool.create(
+                                module::instantiate, Runtime.getRuntime().availableProcessors());
+        private int maxEntries;
+        private long maxModuleBytes;
+        private long maxTotalPages;
+
+        private Builder(Function<K, byte[]> loader) {
+            this.loader = loader;
+        }
+
+        /**
+         * Builds the module of the bytes returned by the loader, defaults to {@code
+         * OpaPolicy.builder().withPolicy(bytes).buildModule()}.
+         */
+        public Builder<K> withModuleFactory(Function<byte[], OpaModule> moduleFactory) {
+            this.moduleFactory = moduleFactory;
+            return this;
+        }
+
+        /**
+         * Creates the pool of a key, defaults to a pool of as many instances as available cores.
+         */
+        public Builder<K> withPoolFactory(Function<OpaModule, OpaPolicyPool> poolFactory) {
+            this.poolFactory = poolFactory;
+            return this;
+        }
+
+        /** Evicts the least recently used keys beyond {@code maxEntries}. */
+        public Builder<K> withMaxEntries(int maxEntries) {
+            this.maxEntries = maxEntries;
+            return this;
+        }
+
+        /**
+         * Evicts all the keys of the least recently used modules while the binaries of the distinct
+         * modules exceed {@code maxModuleBytes}, an estimate of the heap held by their parsed and
+         * compiled code.
+         */
+        public Builder<K> withMaxModuleBytes(long maxModuleBytes) {
+            this.maxModuleBytes = maxModuleBytes;
+            return this;
+        }
+
+        /**
+         * Drops the idle instances, then evicts the least recently used keys, while the linear
+         * memory of all the instances exceeds {@code maxTotalPages} 64KiB Wasm pages.
+         */
+        public Builder<K> withMaxTotalPages(long maxTotalPages) {
+            this.maxTotalPages = maxTotalPages;
+            return this;
+        }
+
+        public OpaPolicyRegistry<K> build() {
+            Objects.requireNonNull(loader);
+            Objects.requireNonNull(moduleFactory);
+            Objects.requireNonNull(poolFactory);
+            if (maxEntries < 0 || maxModuleBytes < 0 || maxTotalPages < 0) {
+                throw new IllegalArgumentException(
+                        "maxEntries, maxModuleBytes and maxTotalPages must not be negative");
+            }
+            return new OpaPolicyRegistry<>(this);
+        }
+    }
+
+    private static final class Entry<K> {
+        private final K key;
+        private final CompletableFuture<OpaPolicyPool> pool = new CompletableFuture<>();
+        // the first thread that needs the pool loads it
+        private final AtomicBoolean loading = new AtomicBoolean();
+        private final AtomicBoolean retired = new AtomicBoolean();
+        private volatile SharedModule shared;
+        private volatile long lastUsed;
+
+        private Entry(K key) {
+            this.key = key;
+        }
+
+        // the pool, or null while loading or when it failed
+        private OpaPolicyPool loaded() {
+            return pool.isDone() && !pool.isCompletedExceptionally() ? pool.join() : null;
+        }
+    }
+
+    private static final class SharedModule {
+        private final String hash;
+        private final long size;
+        private final CompletableFuture<OpaModule> module = new CompletableFuture<>();
+        // the keys using the module, guarded by the map entry
+        private int refs;
+
+        private SharedModule(String hash, long size) {
+            this.hash = hash;
+            this.size = size;
+        }
+    }
+}
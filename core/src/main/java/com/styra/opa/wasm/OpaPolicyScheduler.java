@@ -0,0 +1,717 @@
+package com.styra.opa.wasm;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shares the capacity of an {@link OpaPolicyPool} between lanes, e.g. the interactive requests
+ * and the batch jobs, or the tenants of a service, so that a burst in one lane doesn't starve the
+ * others.
+ *
+ * <pre>{@code
+ * var scheduler =
+ *         OpaPolicyScheduler.builder(pool)
+ *                 .withLane("interactive", 4, 2, 0)
+ *                 .withLane("batch", 1, 0, 8)
+ *                 .build();
+ *
+ * try (var loan = scheduler.borrow("batch")) {
+ *     loan.policy().evaluate(input);
+ * }
+ * }</pre>
+ *
+ * <p>Each lane has its own queue of borrowers, served in order. When a slot of the pool frees up,
+ * it goes to the lane with waiters that has received the smallest share of the pool relative to
+ * its weight (start-time fair queuing): a lane of weight 4 is served four times as often as a lane
+ * of weight 1 while both have waiters, and an idle lane doesn't accumulate credit. On top of the
+ * weights, a lane can be guaranteed a minimum number of slots, kept free for it even when it's
+ * idle, and capped to a maximum number of concurrent loans. The lanes created with the {@link
+ * Builder#withDefaultLane(int, int) default settings}, e.g. one per tenant, are dropped once idle.
+ *
+ * <p>The scheduler lends at most {@link OpaPolicyPool#maxSize()} policies at a time, the
+ * borrowers granted a slot then borrow from the pool, without waiting unless the pool is also
+ * used directly.
+ */
+public final class OpaPolicyScheduler implements AutoCloseable {
+    // the virtual time of a lane advances by STRIDE / weight for every slot granted, the virtual
+    // times are only compared by difference so that they can wrap around
+    private static final long STRIDE = 1L << 24;
+    private static final int MAX_WEIGHT = 1 << 20;
+
+    private final OpaPolicyPool pool;
+    private final int capacity;
+    private final Map<String, Lane> lanes;
+    // the configured lanes with a reservation, served first while below it
+    private final List<Lane> reservedLanes;
+    private final LaneSettings defaultLane;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger wip = new AtomicInteger();
+    // the lanes that got a new borrower or a loan back, to be (re)considered by the scheduling loop
+    private final ConcurrentLinkedQueue<Lane> signals = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    // owned by the scheduling loop
+    private long virtualTime;
+    // the lanes that can be served, by start tag, an entry is stale once its lane got a newer one
+    private final PriorityQueue<Slot> ready =
+            new PriorityQueue<>((a, b) -> Long.signum(a.start - b.start));
+    // the stale entries left in the ready queue
+    private int stale;
+
+    private OpaPolicyScheduler(Builder builder) {
+        this.pool = builder.pool;
+        this.capacity = builder.pool.maxSize();
+        this.lanes = new ConcurrentHashMap<>();
+        this.reservedLanes = new ArrayList<>();
+        for (var settings : builder.lanes.values()) {
+            var lane = new Lane(settings.name, settings, capacity, false);
+            lanes.put(settings.name, lane);
+            if (lane.reserved > 0) {
+                reservedLanes.add(lane);
+            }
+        }
+        this.defaultLane = builder.defaultLane;
+    }
+
+    public static Builder builder(OpaPolicyPool pool) {
+        return new Builder(pool);
+    }
+
+    /**
+     * Returns the lane {@code name}. A lane that wasn't configured has the {@link
+     * Builder#withDefaultLane(int, int) default settings}: it's the one in use if it has borrowers,
+     * an idle lane with no history otherwise.
+     *
+     * @throws IllegalArgumentException if the lane wasn't configured and there is no default lane
+     */
+    public Lane lane(String name) {
+        Objects.requireNonNull(name);
+        var lane = lanes.get(name);
+        if (lane != null) {
+            return lane;
+        }
+        if (defaultLane == null) {
+            throw new IllegalArgumentException("Unknown lane: " + name);
+        }
+        // only registered by its borrowers
+        return new Lane(name, defaultLane, capacity, true);
+    }
+
+    /** The configured lanes and the default lanes in use, to report their metrics. */
+    public Collection<Lane> lanes() {
+        return Collections.unmodifiableCollection(lanes.values());
+    }
+
+    /** The number of policies currently lent through the scheduler. */
+    public int active() {
+        return active.get();
+    }
+
+    /**
+     * Borrows a policy for the lane, blocking until the lane is granted a slot.
+     *
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     * @throws IllegalStateException if the scheduler or the pool has been closed
+     * @throws IllegalArgumentException if the lane is unknown, see {@link #lane(String)}
+     */
+    public OpaPolicyPool.Loan borrow(String lane) throws InterruptedException {
+        var ticket = enqueue(lane);
+        try {
+            ticket.get();
+        } catch (InterruptedException e) {
+            abandon(ticket);
+            throw e;
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+        OpaPolicyPool.Loan loan;
+        try {
+            loan = pool.borrow();
+        } catch (InterruptedException | RuntimeException | Error e) {
+            release(ticket.lane);
+            throw e;
+        }
+        return attach(loan, ticket.lane);
+    }
+
+    /**
+     * Borrows a policy for the lane, waiting at most {@code timeout} for a slot.
+     *
+     * @return the loan, or an empty optional if the lane wasn't granted a slot before the timeout
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     * @throws IllegalStateException if the scheduler or the pool has been closed
+     * @throws IllegalArgumentException if the lane is unknown, see {@link #lane(String)}
+     */
+    public Optional<OpaPolicyPool.Loan> tryBorrow(String lane, Duration timeout)
+            throws InterruptedException {
+        Objects.requireNonNull(timeout);
+        var deadline = System.nanoTime() + toNanos(timeout);
+        var ticket = enqueue(lane);
+        try {
+            ticket.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            ticket.lane.timeouts.increment();
+            abandon(ticket);
+            return Optional.empty();
+        } catch (InterruptedException e) {
+            abandon(ticket);
+            throw e;
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+        Optional<OpaPolicyPool.Loan> loan;
+        try {
+            loan = pool.tryBorrow(Duration.ofNanos(Math.max(0, deadline - System.nanoTime())));
+        } catch (InterruptedException | RuntimeException | Error e) {
+            release(ticket.lane);
+            throw e;
+        }
+        if (loan.isEmpty()) {
+            ticket.lane.timeouts.increment();
+            release(ticket.lane);
+            return loan;
+        }
+        return Optional.of(attach(loan.get(), ticket.lane));
+    }
+
+    /**
+     * Borrows a policy for the lane without blocking, see {@link OpaPolicyPool#borrowAsync()}.
+     * Cancelling the returned future gives up the wait.
+     *
+     * @return a future completed with the loan, or exceptionally with an {@link
+     *     IllegalStateException} if the scheduler or the pool is closed, an {@link
+     *     IllegalArgumentException} if the lane is unknown, or the error borrowing from the pool
+     */
+    public CompletableFuture<OpaPolicyPool.Loan> borrowAsync(String lane) {
+        Ticket ticket;
+        try {
+            ticket = enqueue(lane);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        var result = new CompletableFuture<OpaPolicyPool.Loan>();
+        ticket.whenComplete(
+                (ignored, error) -> {
+                    if (error != null) {
+                        result.completeExceptionally(error);
+                        return;
+                    }
+                    pool.borrowAsync()
+                            .whenComplete(
+                                    (loan, e) -> {
+                                        if (e != null) {
+                                            release(ticket.lane);
+                                            result.completeExceptionally(e);
+                                        } else if (!result.complete(attach(loan, ticket.lane))) {
+                                            // cancelled in the meantime
+                                            loan.close();
+                                        }
+                                    });
+                });
+        result.whenComplete(
+                (loan, error) -> {
+                    if (result.isCancelled()) {
+                        ticket.cancel(false);
+                    }
+                });
+        return result;
+    }
+
+    /**
+     * Fails the borrowers waiting for a slot, the policies already lent are returned to the pool
+     * as usual. The pool itself is left open.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (var lane : lanes.values()) {
+            Ticket ticket;
+            while ((ticket = lane.queue.poll()) != null) {
+                lane.waiting.decrementAndGet();
+                unref(lane);
+                ticket.completeExceptionally(new IllegalStateException("Scheduler is closed"));
+            }
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private Ticket enqueue(String name) {
+        if (closed) {
+            throw new IllegalStateException("Scheduler is closed");
+        }
+        var lane = acquire(name);
+        var ticket = new Ticket(lane, System.nanoTime());
+        lane.waiting.incrementAndGet();
+        lane.queue.offer(ticket);
+        if (closed && lane.queue.remove(ticket)) {
+            lane.waiting.decrementAndGet();
+            unref(lane);
+            ticket.completeExceptionally(new IllegalStateException("Scheduler is closed"));
+            return ticket;
+        }
+        // cancelled or timed out, it doesn't hold its place in the queue any longer
+        ticket.whenComplete(
+                (ignored, error) -> {
+                    if (error != null && lane.queue.remove(ticket)) {
+                        lane.waiting.decrementAndGet();
+                        unref(lane);
+                    }
+                });
+        signal(lane);
+        return ticket;
+    }
+
+    // the lane of a new borrower, referenced until the borrower leaves so that it's not dropped
+    private Lane acquire(String name) {
+        Objects.requireNonNull(name);
+        while (true) {
+            var lane = lanes.get(name);
+            if (lane == null) {
+                if (defaultLane == null) {
+                    throw new IllegalArgumentException("Unknown lane: " + name);
+                }
+                lane = lanes.computeIfAbsent(name, n -> new Lane(n, defaultLane, capacity, true));
+            }
+            if (lane.retain()) {
+                return lane;
+            }
+            // dropped in the meantime
+            lanes.remove(name, lane);
+        }
+    }
+
+    // a borrower left the lane, given up or returning its loan: a default lane is dropped once idle
+    private void unref(Lane lane) {
+        if (lane.refs.decrementAndGet() == 0 && lane.dynamic && lane.refs.compareAndSet(0, -1)) {
+            lanes.remove(lane.name, lane);
+        }
+    }
+
+    private void signal(Lane lane) {
+        if (lane.signalled.compareAndSet(false, true)) {
+            signals.offer(lane);
+        }
+        schedule();
+    }
+
+    private OpaPolicyPool.Loan attach(OpaPolicyPool.Loan loan, Lane lane) {
+        loan.onReturn(() -> release(lane));
+        return loan;
+    }
+
+    private void release(Lane lane) {
+        lane.active.decrementAndGet();
+        active.decrementAndGet();
+        unref(lane);
+        if (lane.waiting.get() > 0) {
+            // below its cap again
+            signal(lane);
+        } else {
+            schedule();
+        }
+    }
+
+    // gives up waiting, freeing the slot if it has been granted in the meantime
+    private void abandon(Ticket ticket) {
+        if (!ticket.cancel(false) && !ticket.isCompletedExceptionally()) {
+            release(ticket.lane);
+        }
+    }
+
+    // The slots are granted by a single thread at a time, the one that increments "wip" from 0,
+    // the borrowers are only signalled once it's done, so that the work they do on the signalling
+    // thread doesn't hold up the scheduling.
+    private void schedule() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        List<Ticket> granted = null;
+        var missed = 1;
+        while (true) {
+            Ticket ticket;
+            while ((ticket = next()) != null) {
+                if (granted == null) {
+                    granted = new ArrayList<>();
+                }
+                granted.add(ticket);
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                break;
+            }
+        }
+        if (granted != null) {
+            for (var ticket : granted) {
+                if (!ticket.complete(null)) {
+                    // cancelled in the meantime
+                    release(ticket.lane);
+                }
+            }
+        }
+    }
+
+    // called by the scheduling loop: takes the next borrower to grant a slot to, if any
+    private Ticket next() {
+        Lane signalled;
+        while ((signalled = signals.poll()) != null) {
+            signalled.signalled.set(false);
+            if (signalled.slot == null) {
+                offer(signalled);
+            }
+        }
+
+        while (true) {
+            var free = capacity - active.get();
+            if (free <= 0) {
+                return null;
+            }
+
+            // the lanes below their reservation first
+            Lane next = null;
+            var nextStart = 0L;
+            var held = 0;
+            for (var lane : reservedLanes) {
+                var inUse = lane.active.get();
+                if (inUse >= lane.reserved) {
+                    continue;
+                }
+                held += lane.reserved - inUse;
+                if (lane.queue.isEmpty()) {
+                    continue;
+                }
+                var start = startOf(lane);
+                if (next == null || start - nextStart < 0) {
+                    next = lane;
+                    nextStart = start;
+                }
+            }
+            // then the smallest start tag, with the slots not kept for the reservations
+            if (next == null) {
+                if (free <= held) {
+                    return null;
+                }
+                var slot = ready.poll();
+                if (slot == null) {
+                    return null;
+                }
+                if (slot.lane.slot != slot) {
+                    stale--;
+                    continue;
+                }
+                next = slot.lane;
+                next.slot = null;
+                if (next.queue.isEmpty() || next.active.get() >= next.maxConcurrent) {
+                    // left out until it's signalled again
+                    continue;
+                }
+                nextStart = slot.start;
+            }
+
+            var ticket = next.queue.poll();
+            if (ticket != null) {
+                next.waiting.decrementAndGet();
+            }
+            if (ticket == null || ticket.isDone()) {
+                // cancelled in the meantime
+                if (ticket != null) {
+                    unref(next);
+                }
+                if (next.slot == null) {
+                    offer(next);
+                }
+                continue;
+            }
+            next.active.incrementAndGet();
+            active.incrementAndGet();
+            if (nextStart - virtualTime > 0) {
+                virtualTime = nextStart;
+            }
+            next.pass = nextStart + next.stride;
+            next.waitTime.record(System.nanoTime() - ticket.start);
+            offer(next);
+            return ticket;
+        }
+    }
+
+    // (re)inserts the lane in the ready queue, as long as it can be served
+    private void offer(Lane lane) {
+        if (lane.slot != null) {
+            // superseded, it's skipped when polled
+            stale++;
+        }
+        if (lane.queue.isEmpty() || lane.active.get() >= lane.maxConcurrent) {
+            lane.slot = null;
+            return;
+        }
+        lane.slot = new Slot(lane, startOf(lane));
+        ready.add(lane.slot);
+        // e.g. a reserved lane served repeatedly while the others wait
+        if (stale > 16 && stale > ready.size() / 2) {
+            ready.removeIf(slot -> slot.lane.slot != slot);
+            stale = 0;
+        }
+    }
+
+    // a lane starts where it left off, or at the current virtual time if it has been idle: it
+    // doesn't accumulate credit. A pass more than a stride ahead has wrapped around.
+    private long startOf(Lane lane) {
+        var ahead = lane.pass - virtualTime;
+        return (ahead > 0 && ahead <= lane.stride) ? lane.pass : virtualTime;
+    }
+
+    private static RuntimeException rethrow(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new CompletionException(cause);
+    }
+
+    private static long toNanos(Duration timeout) {
+        try {
+            return Math.max(0, timeout.toNanos());
+        } catch (ArithmeticException e) {
+            return Long.MAX_VALUE / 2;
+        }
+    }
+
+    /** A queue of borrowers sharing the pool with the other lanes, and its metrics. */
+    public static final class Lane {
+        private final String name;
+        private final int weight;
+        private final int reserved;
+        private final int maxConcurrent;
+        private final long stride;
+        private final ConcurrentLinkedQueue<Ticket> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger waiting = new AtomicInteger();
+        private final AtomicInteger active = new AtomicInteger();
+        private final PoolMetricsRecorder.Histogram waitTime = new PoolMetricsRecorder.Histogram();
+        private final LongAdder timeouts = new LongAdder();
+        // created with the default settings, dropped once idle
+        private final boolean dynamic;
+        // the borrowers waiting or holding a loan, -1 once dropped
+        private final AtomicInteger refs = new AtomicInteger();
+        // queued in the signals
+        private final AtomicBoolean signalled = new AtomicBoolean();
+
+        // owned by the scheduling loop
+        private long pass;
+        // the entry of the lane in the ready queue, if any
+        private Slot slot;
+
+        private Lane(String name, LaneSettings settings, int capacity, boolean dynamic) {
+            this.name = name;
+            this.dynamic = dynamic;
+            this.weight = settings.weight;
+            this.reserved = settings.reserved;
+            this.maxConcurrent =
+                    (settings.maxConcurrent == 0)
+                            ? capacity
+                            : Math.min(settings.maxConcurrent, capacity);
+            this.stride = STRIDE / settings.weight;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        private boolean retain() {
+            while (true) {
+                var current = refs.get();
+                if (current < 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        public int weight() {
+            return weight;
+        }
+
+        /** The number of slots kept for the lane. */
+        public int reserved() {
+            return reserved;
+        }
+
+        /** The maximum number of policies lent to the lane at a time. */
+        public int maxConcurrent() {
+            return maxConcurrent;
+        }
+
+        /** The number of borrowers waiting for a slot, the depth of the queue. */
+        public int waiting() {
+            return waiting.get();
+        }
+
+        /** The number of policies currently lent to the lane. */
+        public int active() {
+            return active.get();
+        }
+
+        /** The time, in nanoseconds, borrowers waited for a slot. */
+        public PoolMetricsRecorder.Histogram waitTime() {
+            return waitTime;
+        }
+
+        /** The number of borrowers that gave up waiting when their deadline expired. */
+        public long timeouts() {
+            return timeouts.sum();
+        }
+
+        @Override
+        public String toString() {
+            return "Lane{name="
+                    + name
+                    + ", waiting="
+                    + waiting()
+                    + ", active="
+                    + active()
+                    + ", waitTime="
+                    + waitTime
+                    + ", timeouts="
+                    + timeouts()
+                    + "}";
+        }
+    }
+
+    // a borrower waiting for a slot, completed by the scheduling loop
+    private static final class Ticket extends CompletableFuture<Void> {
+        private final Lane lane;
+        private final long start;
+
+        private Ticket(Lane lane, long start) {
+            this.lane = lane;
+            this.start = start;
+        }
+    }
+
+    private static final class Slot {
+        private final Lane lane;
+        private final long start;
+
+        private Slot(Lane lane, long start) {
+            this.lane = lane;
+            this.start = start;
+        }
+    }
+
+    private static final class LaneSettings {
+        private final String name;
+        private final int weight;
+        private final int reserved;
+        private final int maxConcurrent;
+
+        private LaneSettings(String name, int weight, int reserved, int maxConcurrent) {
+            if (weight < 1 || weight > MAX_WEIGHT) {
+                throw new IllegalArgumentException(
+                        "weight must be between 1 and " + MAX_WEIGHT + ", got: " + weight);
+            }
+            if (reserved < 0) {
+                throw new IllegalArgumentException("reserved must be >= 0, got: " + reserved);
+            }
+            if (maxConcurrent < 0) {
+                throw new IllegalArgumentException(
+                        "maxConcurrent must be >= 0, got: " + maxConcurrent);
+            }
+            if (maxConcurrent > 0 && reserved > maxConcurrent) {
+                throw new IllegalArgumentException(
+                        "reserved must be <= maxConcurrent, got: "
+                                + reserved
+                                + " > "
+                                + maxConcurrent);
+            }
+            this.name = name;
+            this.weight = weight;
+            this.reserved = reserved;
+            this.maxConcurrent = maxConcurrent;
+        }
+    }
+
+    public static final class Builder {
+        private final OpaPolicyPool pool;
+        private final Map<String, LaneSettings> lanes = new LinkedHashMap<>();
+        private LaneSettings defaultLane;
+
+        private Builder(OpaPolicyPool pool) {
+            this.pool = Objects.requireNonNull(pool);
+        }
+
+        /** Adds a lane sharing the pool according to its weight, with no reservation nor cap. */
+        public Builder withLane(String name, int weight) {
+            return withLane(name, weight, 0, 0);
+        }
+
+        /**
+         * Adds a lane.
+         *
+         * @param weight the share of the pool relative to the other lanes, from 1 to 2^20
+         * @param reserved the number of slots kept for the lane even when it's idle
+         * @param maxConcurrent the maximum number of policies lent to the lane at a time, 0 for
+         *     the pool size
+         */
+        public Builder withLane(String name, int weight, int reserved, int maxConcurrent) {
+            Objects.requireNonNull(name);
+            if (lanes.containsKey(name)) {
+                throw new IllegalArgumentException("Duplicate lane: " + name);
+            }
+            lanes.put(name, new LaneSettings(name, weight, reserved, maxConcurrent));
+            return this;
+        }
+
+        /**
+         * Creates the lanes that are not configured on first use, e.g. one per tenant, with these
+         * settings. They have no reservation, their number being unbounded, and are dropped, with
+         * their metrics, as soon as they have no borrower left.
+         *
+         * @param maxConcurrent the maximum number of policies lent to each lane at a time, 0 for
+         *     the pool size
+         */
+        public Builder withDefaultLane(int weight, int maxConcurrent) {
+            this.defaultLane = new LaneSettings(null, weight, 0, maxConcurrent);
+            return this;
+        }
+
+        public OpaPolicyScheduler build() {
+            if (lanes.isEmpty() && defaultLane == null) {
+                throw new IllegalArgumentException("At least one lane must be configured");
+            }
+            var reserved = 0L;
+            for (var lane : lanes.values()) {
+                reserved += lane.reserved;
+            }
+            if (reserved > pool.maxSize()) {
+                throw new IllegalArgumentException(
+                        "The reservations exceed the pool size: "
+                                + reserved
+                                + " > "
+                                + pool.maxSize());
+            }
+            return new OpaPolicyScheduler(this);
+        }
+    }
+}
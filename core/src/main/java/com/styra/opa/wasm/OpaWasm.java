@@ -3,17 +3,23 @@ package com.styra.opa.wasm;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.styra.opa.wasm.builtins.Provided;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 import run.endive.annotations.WasmModuleInterface;
 import run.endive.compiler.MachineFactoryCompiler;
 import run.endive.runtime.Instance;
+import run.endive.runtime.Machine;
 import run.endive.runtime.Memory;
 import run.endive.wasm.Parser;
+import run.endive.wasm.WasmModule;
 
 // Low level bindings to OPA
 @WasmModuleInterface("demo-policy.wasm")
@@ -31,28 +37,32 @@ public class OpaWasm implements OpaWasm_ModuleImports, OpaWasm_Env {
     }
 
     private OpaWasm(
-            InputStream is,
+            WasmModule module,
             ObjectMapper jsonMapper,
             ObjectMapper yamlMapper,
             Memory memory,
             boolean defaultBuiltins,
-            boolean enableCompiler,
-            OpaBuiltin.Builtin[] builtins) {
+            Function<Instance, Machine> machineFactory,
+            OpaBuiltin.Builtin[] builtins,
+            OpaBuiltin.Builtin[] builtinsTable) {
         this.jsonMapper = jsonMapper;
         this.yamlMapper = yamlMapper;
         this.memory = memory;
         var instanceBuilder =
-                Instance.builder(Parser.parse(is))
+                Instance.builder(module)
                         .withImportValues(toImportValues())
                         .withMemoryFactory(limits -> memory);
 
-        if (enableCompiler) {
-            instanceBuilder.withMachineFactory(MachineFactoryCompiler::compile);
+        if (machineFactory != null) {
+            instanceBuilder.withMachineFactory(machineFactory);
         }
 
         this.instance = instanceBuilder.build();
         this.exports = new OpaWasm_ModuleExports(instance);
-        this.builtins = initializeBuiltins(defaultBuiltins, builtins);
+        this.builtins =
+                (builtinsTable != null)
+                        ? builtinsTable
+                        : initializeBuiltins(defaultBuiltins, builtins);
     }
 
     public OpaBuiltin.Builtin[] initializeBuiltins(
@@ -76,7 +86,7 @@ public class OpaWasm implements OpaWasm_ModuleImports, OpaWasm_Env {
         Map<Integer, OpaBuiltin.Builtin> result = new HashMap<>();
         // Default initialization to have proper error messages
         for (var m : mappings.entrySet()) {
-            result.put(m.getValue(), () -> m.getKey());
+            result.put(m.getValue(), new OpaBuiltin.Unbound(m.getKey()));
         }
         for (var builtin : builtins) {
             if (mappings.containsKey(builtin.name())) {
@@ -109,12 +119,16 @@ public class OpaWasm implements OpaWasm_ModuleImports, OpaWasm_Env {
     public static class Builder {
         private OpaWasm_Env imports;
         private InputStream is;
+        private WasmModule module;
+        private Function<Instance, Machine> machineFactory;
         private ObjectMapper jsonMapper;
         private ObjectMapper yamlMapper;
         private Memory memory;
         private List<OpaBuiltin.Builtin> builtins = new ArrayList<>();
         protected boolean defaultBuiltins = true;
         private boolean enableCompiler = true;
+        private OpaBuiltin.Builtin[] builtinsTable;
+        private CompilerCache compilerCache;
 
         private Builder() {}
 
@@ -123,6 +137,18 @@ public class OpaWasm implements OpaWasm_ModuleImports, OpaWasm_Env {
             return this;
         }
 
+        // an already parsed module, takes precedence over the input stream
+        public Builder withModule(WasmModule module) {
+            this.module = module;
+            return this;
+        }
+
+        // e.g. a factory compiled once for the module and shared by all the instances
+        public Builder withMachineFactory(Function<Instance, Machine> machineFactory) {
+            this.machineFactory = machineFactory;
+            return this;
+        }
+
         public Builder withJsonMapper(ObjectMapper jsonMapper) {
             this.jsonMapper = jsonMapper;
             return this;
@@ -155,15 +181,46 @@ public class OpaWasm implements OpaWasm_ModuleImports, OpaWasm_Env {
             return this;
         }
 
+        public Builder withCompilerCache(CompilerCache compilerCache) {
+            this.compilerCache = compilerCache;
+            return this;
+        }
+
+        // the id -> builtin dispatch table already resolved for the module,
+        // skips initializeBuiltins
+        Builder withBuiltinsTable(OpaBuiltin.Builtin[] builtinsTable) {
+            this.builtinsTable = builtinsTable;
+            return this;
+        }
+
         public OpaWasm build() {
+            var module = this.module;
+            var machineFactory = this.machineFactory;
+            if (module == null
+                    && machineFactory == null
+                    && enableCompiler
+                    && compilerCache != null) {
+                byte[] wasm;
+                try (var is = this.is) {
+                    wasm = is.readAllBytes();
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to read the module", e);
+                }
+                module = Parser.parse(wasm);
+                machineFactory = compilerCache.machineFactory(module, wasm);
+            }
+            if (machineFactory == null && enableCompiler) {
+                machineFactory = MachineFactoryCompiler::compile;
+            }
             return new OpaWasm(
-                    is,
+                    (module != null) ? module : Parser.parse(is),
                     jsonMapper,
                     yamlMapper,
                     memory,
                     defaultBuiltins,
-                    enableCompiler,
-                    builtins.toArray(OpaBuiltin.Builtin[]::new));
+                    machineFactory,
+                    builtins.toArray(OpaBuiltin.Builtin[]::new),
+                    builtinsTable);
         }
     }
 
@@ -195,6 +252,45 @@ public class OpaWasm implements OpaWasm_ModuleImports, OpaWasm_Env {
         return resultStr;
     }
 
+    // reads the NUL-terminated string at "addr" without decoding it,
+    // the terminator is looked for in chunks growing from 256 bytes to 64KiB,
+    // so that a short result costs a single read from the guest memory
+    public byte[] readCBytes(int addr) {
+        var memorySize = (long) memory.pages() * Memory.PAGE_SIZE;
+        var chunkSize = 256;
+        ByteArrayOutputStream out = null;
+        long position = addr;
+        while (position < memorySize) {
+            var chunk =
+                    memory.readBytes(
+                            (int) position, (int) Math.min(chunkSize, memorySize - position));
+            var end = indexOfNul(chunk);
+            if (end >= 0 && out == null) {
+                return Arrays.copyOf(chunk, end);
+            }
+            if (out == null) {
+                out = new ByteArrayOutputStream(chunk.length * 2);
+            }
+            if (end >= 0) {
+                out.write(chunk, 0, end);
+                return out.toByteArray();
+            }
+            out.write(chunk, 0, chunk.length);
+            position += chunk.length;
+            chunkSize = Math.min(chunkSize * 2, 64 * 1024);
+        }
+        throw new RuntimeException("Unterminated string at address " + addr);
+    }
+
+    static int indexOfNul(byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     public int writeResult(String result) {
         var bytes = result.getBytes(StandardCharsets.UTF_8);
         var resultStrAddr = exports.opaMalloc(bytes.length);
@@ -215,6 +311,10 @@ public class OpaWasm implements OpaWasm_ModuleImports, OpaWasm_Env {
         return memory;
     }
 
+    OpaBuiltin.Builtin[] builtins() {
+        return builtins;
+    }
+
     @Override
     public int opaBuiltin0(int builtinId, int ctx) {
         return builtins[builtinId].asBuiltin0(this);
@@ -0,0 +1,45 @@
+package com.styra.opa.wasm;
+
+/**
+ * Receives the events of an {@link OpaPolicyPool}, to be bridged to any metrics library, see
+ * {@link OpaPolicyPool.Builder#withMetrics(PoolMetrics)}.
+ *
+ * <p>The methods are called inline by the borrowing and returning threads, implementations must be
+ * thread-safe and cheap, e.g. counters and histograms updates. Durations are in nanoseconds.
+ *
+ * <p>The gauges (idle and in-use instances, available permits, waiting borrowers) are read from
+ * the pool itself, implementations can register them when the pool is {@linkplain
+ * #bind(OpaPolicyPool) bound}. {@link PoolMetricsRecorder} is a built-in implementation.
+ */
+public interface PoolMetrics {
+
+    /** Ignores all the events, the default. */
+    PoolMetrics NOOP = new PoolMetrics() {};
+
+    /** Called once with the pool reporting to this instance, e.g. to register the gauges. */
+    default void bind(OpaPolicyPool pool) {}
+
+    /** A policy has been lent after waiting {@code waitNanos} for it. */
+    default void borrowed(long waitNanos) {}
+
+    /** A policy has been returned to the pool after being lent for {@code holdNanos}. */
+    default void returned(long holdNanos) {}
+
+    /** A policy has been discarded after being lent for {@code holdNanos}. */
+    default void discarded(long holdNanos) {}
+
+    /** The factory created a new policy in {@code nanos}. */
+    default void created(long nanos) {}
+
+    /**
+     * An instance has been dropped by the eviction policies of the pool, e.g. idle for too long or
+     * grown too large.
+     */
+    default void evicted() {}
+
+    /** A borrower has been rejected because too many borrowers were already waiting. */
+    default void rejected() {}
+
+    /** A borrower gave up waiting for a policy when its deadline expired. */
+    default void timedOut() {}
+}
@@ -0,0 +1,216 @@
+package com.styra.opa.wasm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Built-in {@link PoolMetrics} recording the events in memory, with {@link LongAdder}s so that
+ * concurrent borrowers don't contend on the same counters.
+ *
+ * <pre>{@code
+ * var metrics = new PoolMetricsRecorder();
+ * var pool = OpaPolicyPool.builder(module::instantiate, 32).withMetrics(metrics).build();
+ * ...
+ * long p99 = metrics.borrowWait().valueAtPercentile(99.0);
+ * }</pre>
+ */
+public final class PoolMetricsRecorder implements PoolMetrics {
+    private final Histogram borrowWait = new Histogram();
+    private final Histogram holdTime = new Histogram();
+    private final Histogram creation = new Histogram();
+    private final LongAdder discards = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    @Override
+    public void borrowed(long waitNanos) {
+        borrowWait.record(waitNanos);
+    }
+
+    @Override
+    public void returned(long holdNanos) {
+        holdTime.record(holdNanos);
+    }
+
+    @Override
+    public void discarded(long holdNanos) {
+        holdTime.record(holdNanos);
+        discards.increment();
+    }
+
+    @Override
+    public void created(long nanos) {
+        creation.record(nanos);
+    }
+
+    @Override
+    public void evicted() {
+        evictions.increment();
+    }
+
+    @Override
+    public void rejected() {
+        rejections.increment();
+    }
+
+    @Override
+    public void timedOut() {
+        timeouts.increment();
+    }
+
+    /** The time, in nanoseconds, borrowers waited for a policy. */
+    public Histogram borrowWait() {
+        return borrowWait;
+    }
+
+    /** The time, in nanoseconds, policies were lent for, returned or discarded. */
+    public Histogram holdTime() {
+        return holdTime;
+    }
+
+    /** The time, in nanoseconds, the factory took to create a policy. */
+    public Histogram creation() {
+        return creation;
+    }
+
+    public long discards() {
+        return discards.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public long rejections() {
+        return rejections.sum();
+    }
+
+    public long timeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "PoolMetricsRecorder{borrowWait="
+                + borrowWait
+                + ", holdTime="
+                + holdTime
+                + ", creation="
+                + creation
+                + ", discards="
+                + discards()
+                + ", evictions="
+                + evictions()
+                + ", rejections="
+                + rejections()
+                + ", timeouts="
+                + timeouts()
+                + "}";
+    }
+
+    /**
+     * A histogram of non-negative values with log-linear buckets: each power of two is split in 8
+     * linear buckets, so that the values are reported with a relative error below 12.5%, from
+     * nanoseconds to hours, in a fixed set of {@link LongAdder}s.
+     */
+    public static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = bucket(Long.MAX_VALUE) + 1;
+
+        private final LongAdder[] counts = new LongAdder[BUCKETS];
+        private final LongAdder sum = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            var exponent = 63 - Long.numberOfLeadingZeros(value);
+            var shift = exponent - SUB_BUCKET_BITS;
+            var sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+            return (shift + 1) * SUB_BUCKETS + sub;
+        }
+
+        // the highest value of the bucket
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            var shift = bucket / SUB_BUCKETS - 1;
+            var sub = bucket % SUB_BUCKETS;
+            var lower = (long) (SUB_BUCKETS + sub) << shift;
+            return lower + ((1L << shift) - 1);
+        }
+
+        void record(long value) {
+            var v = Math.max(0, value);
+            counts[bucket(v)].increment();
+            sum.add(v);
+        }
+
+        public long count() {
+            long count = 0;
+            for (var c : counts) {
+                count += c.sum();
+            }
+            return count;
+        }
+
+        public long sum() {
+            return sum.sum();
+        }
+
+        /**
+         * The value below which {@code percentile} percent of the recorded values fall, rounded up
+         * to the bucket boundary, or 0 when nothing has been recorded.
+         */
+        public long valueAtPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException(
+                        "percentile must be between 0 and 100, got: " + percentile);
+            }
+            var snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts[i].sum();
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            var rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        @Override
+        public String toString() {
+            return "{count="
+                    + count()
+                    + ", p50="
+                    + micros(valueAtPercentile(50))
+                    + "us, p99="
+                    + micros(valueAtPercentile(99))
+                    + "us, max="
+                    + micros(valueAtPercentile(100))
+                    + "us}";
+        }
+
+        private static long micros(long nanos) {
+            return TimeUnit.NANOSECONDS.toMicros(nanos);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.styra.opa.wasm;
+
+import java.io.InputStream;
+import java.util.Objects;
+import run.endive.runtime.Memory;
+
+/**
+ * {@link InputStream} reading a NUL-terminated string directly from the linear memory of the
+ * guest, so that results can be handed to Jackson without intermediate copies.
+ *
+ * <p>The memory is read in chunks, growing from 256 bytes to 64KiB, rather than byte by byte.
+ */
+final class WasmInputStream extends InputStream {
+    private static final int MIN_CHUNK = 256;
+    private static final int MAX_CHUNK = 64 * 1024;
+
+    private final Memory memory;
+    private final long memorySize;
+    private long addr;
+    private int chunkSize = MIN_CHUNK;
+    // the bytes read so far, up to the terminator when it has been found
+    private byte[] chunk = new byte[0];
+    private int position;
+    private int limit;
+    private boolean terminated;
+
+    WasmInputStream(Memory memory, int addr) {
+        this.memory = memory;
+        this.memorySize = (long) memory.pages() * Memory.PAGE_SIZE;
+        this.addr = addr;
+    }
+
+    @Override
+    public int read() {
+        if (!fill()) {
+            return -1;
+        }
+        return chunk[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        var count = Math.min(len, limit - position);
+        System.arraycopy(chunk, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    // makes sure that there is something left to read in the chunk, false at the end of the string
+    private boolean fill() {
+        if (position < limit) {
+            return true;
+        }
+        if (terminated) {
+            return false;
+        }
+        if (addr >= memorySize) {
+            throw new RuntimeException("Unterminated string, reached the end of the memory");
+        }
+        chunk = memory.readBytes((int) addr, (int) Math.min(chunkSize, memorySize - addr));
+        addr += chunk.length;
+        chunkSize = Math.min(chunkSize * 2, MAX_CHUNK);
+        position = 0;
+        var end = OpaWasm.indexOfNul(chunk);
+        if (end >= 0) {
+            terminated = true;
+            limit = end;
+        } else {
+            limit = chunk.length;
+        }
+        return position < limit;
+    }
+}
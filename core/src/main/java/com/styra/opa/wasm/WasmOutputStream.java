@@ -0,0 +1,76 @@
+package com.styra.opa.wasm;
+
+import java.io.OutputStream;
+import java.util.Objects;
+
+/**
+ * {@link OutputStream} writing straight into the linear memory of the guest.
+ *
+ * <p>The bytes are stored in a buffer allocated with {@code opa_malloc}; when it's full a new
+ * buffer, twice as big, is allocated and the content is copied over within the guest memory, so
+ * the serialized document never lives on the Java heap.
+ */
+final class WasmOutputStream extends OutputStream {
+    private static final int DEFAULT_CAPACITY = 8 * 1024;
+
+    private final OpaWasm wasm;
+    private int addr;
+    private int capacity;
+    private int size;
+
+    WasmOutputStream(OpaWasm wasm) {
+        this(wasm, DEFAULT_CAPACITY);
+    }
+
+    WasmOutputStream(OpaWasm wasm, int capacity) {
+        this.wasm = wasm;
+        this.capacity = Math.max(capacity, 1);
+        this.addr = wasm.exports().opaMalloc(this.capacity);
+    }
+
+    int address() {
+        return addr;
+    }
+
+    int size() {
+        return size;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        wasm.memory().writeByte(addr + size, (byte) b);
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        ensureCapacity(len);
+        wasm.memory().write(addr + size, b, off, len);
+        size += len;
+    }
+
+    private void ensureCapacity(int len) {
+        var required = size + len;
+        if (required > capacity) {
+            var newCapacity = Math.max(capacity * 2, required);
+            var newAddr = wasm.exports().opaMalloc(newCapacity);
+            wasm.memory().copy(newAddr, addr, size);
+            wasm.exports().opaFree(addr);
+            addr = newAddr;
+            capacity = newCapacity;
+        }
+    }
+
+    // parses the written bytes as Json and releases the buffer
+    int parseJson() {
+        var dstAddr = wasm.exports().opaJsonParse(addr, size);
+        free();
+        return dstAddr;
+    }
+
+    void free() {
+        wasm.exports().opaFree(addr);
+    }
+}
@@ -3,6 +3,7 @@ package com.styra.opa.wasm;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.nio.file.Path;
 import org.junit.jupiter.api.Assertions;
@@ -55,6 +56,41 @@ public class MemoryTest {
         assertDoesNotThrow(() -> policy.evaluate(input));
     }
 
+    @Test
+    public void memoryPlannerTracksHighWaterMarks() {
+        var planner = MemoryPlanner.create(0.5);
+        var policy =
+                OpaPolicy.builder()
+                        .withInitialMemory(2)
+                        .withMaxMemory(8)
+                        .withMemoryPlanner(planner)
+                        .withPolicy(wasmFile)
+                        .build();
+        policy.data("{\"users\": [\"alice\", \"bob\"]}");
+        var input = new String(new char[2 * 65536]).replace("\0", "a");
+        assertDoesNotThrow(() -> policy.evaluate(input));
+
+        // the marks are relative to where each phase starts, the evaluation includes the input
+        assertTrue(planner.highWaterMark(MemoryPlanner.Phase.DATA) > 0);
+        assertTrue(planner.highWaterMark(MemoryPlanner.Phase.EVAL) > 2 * 65536);
+        assertTrue(planner.recommendedInitialPages() > 3);
+
+        // the headroom never goes past the max memory
+        var next =
+                OpaPolicy.builder()
+                        .withInitialMemory(2)
+                        .withMaxMemory(4)
+                        .withMemoryPlanner(planner)
+                        .withPolicy(wasmFile)
+                        .build();
+        assertDoesNotThrow(() -> next.evaluate("{}"));
+    }
+
+    @Test
+    public void memoryPlannerRejectsNegativeHeadroom() {
+        assertThrows(IllegalArgumentException.class, () -> MemoryPlanner.create(-1));
+    }
+
     @Test
     public void doesNotLeakMemoryEvaluatingTheSamePolicyMultipleTimes() {
         var policy =
@@ -1,10 +1,13 @@
 package com.styra.opa.wasm;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.nio.file.Path;
+import java.util.List;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
@@ -52,6 +55,40 @@ public class MultipleEntrypointsTest {
         assertFalse(result.findValue("theirRule").asBoolean());
     }
 
+    @Test
+    public void shouldRunWithEntrypointHandleResolvedAheadOfTime() throws Exception {
+        var handle =
+                OpaPolicy.builder().withPolicy(wasmFile).build().entrypointHandle("example/two");
+        assertEquals("example/two", handle.name());
+
+        // the handle can be used with any instance of the same policy
+        var policy = OpaPolicy.builder().withPolicy(wasmFile).build();
+        policy.input("{}").entrypoint(handle);
+
+        var result = Utils.getResult(policy.evaluate());
+
+        assertTrue(result.size() > 0);
+        assertFalse(result.findValue("ourRule").asBoolean());
+        assertFalse(result.findValue("theirRule").asBoolean());
+        assertSame(policy.entrypoints(), policy.entrypoints());
+    }
+
+    @Test
+    public void shouldRunAllTheEntrypointsWithTheSameInput() throws Exception {
+        var policy = OpaPolicy.builder().withPolicy(wasmFile).build();
+        var expectedOne = policy.entrypoint("example/one").evaluate("{}");
+        var expectedTwo = policy.entrypoint("example/two").evaluate("{}");
+        policy.entrypoint(0);
+
+        var results = policy.evaluateAll("{}", "example/two", "example/one");
+
+        assertEquals(List.of("example/two", "example/one"), List.copyOf(results.keySet()));
+        assertEquals(expectedOne, results.get("example/one"));
+        assertEquals(expectedTwo, results.get("example/two"));
+        // the selected entrypoint is left untouched
+        assertTrue(Utils.getResult(policy.evaluate("{}")).has("one"));
+    }
+
     @Test
     public void shouldNotRunIfEntrypointStringDoesNotExist() throws Exception {
         var policy = OpaPolicy.builder().withPolicy(wasmFile).build();
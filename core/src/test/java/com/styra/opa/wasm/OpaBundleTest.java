@@ -0,0 +1,122 @@
+package com.styra.opa.wasm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class OpaBundleTest {
+    static Path compiledFolder;
+
+    @BeforeAll
+    public static void beforeAll() throws Exception {
+        compiledFolder =
+                OpaCli.compile("bundle", "bundle/allowed", "bundle/greeting", "bundle/max_items");
+    }
+
+    private static void assertBundleData(OpaPolicy policy) {
+        assertTrue(
+                Utils.getResult(
+                                policy.entrypoint("bundle/allowed")
+                                        .evaluate("{\"user\": \"alice\"}"))
+                        .asBoolean());
+        assertFalse(
+                Utils.getResult(policy.entrypoint("bundle/allowed").evaluate("{\"user\": \"bob\"}"))
+                        .asBoolean());
+        assertEquals(
+                "hello",
+                Utils.getResult(policy.entrypoint("bundle/greeting").evaluate("{}")).asText());
+        assertEquals(
+                10, Utils.getResult(policy.entrypoint("bundle/max_items").evaluate("{}")).asInt());
+    }
+
+    @Test
+    public void loadsBundlesBuiltByOpa() throws Exception {
+        // "opa build" merges all the data in the root data.json
+        var policy =
+                OpaPolicy.builder().withBundle(compiledFolder.resolve("bundle.tar.gz")).build();
+
+        assertBundleData(policy);
+    }
+
+    @Test
+    public void mergesNestedDataFiles() throws Exception {
+        var bundle = compiledFolder.resolve("nested-bundle.tar.gz");
+        var sourceFolder = OpaCli.baseSourceFolder.resolve("bundle");
+        var tar =
+                new ProcessBuilder(
+                                List.of(
+                                        "tar",
+                                        "-czf",
+                                        bundle.toFile().getAbsolutePath(),
+                                        "-C",
+                                        compiledFolder.toFile().getAbsolutePath(),
+                                        "policy.wasm",
+                                        "-C",
+                                        sourceFolder.toFile().getAbsolutePath(),
+                                        "data.json",
+                                        "roles/data.json",
+                                        "settings/limits/data.json"))
+                        .inheritIO()
+                        .start();
+        tar.waitFor(10, TimeUnit.SECONDS);
+
+        try (var is = new FileInputStream(bundle.toFile())) {
+            var policy = OpaPolicy.builder().withBundle(is).build();
+            assertBundleData(policy);
+        }
+    }
+
+    @Test
+    public void bundleDataSurvivesPoolLoans() throws Exception {
+        var module =
+                OpaPolicy.builder()
+                        .withBundle(compiledFolder.resolve("bundle.tar.gz"))
+                        .buildModule();
+        var pool = OpaPolicyPool.create(module::instantiate, 1);
+
+        try (var loan = pool.borrow()) {
+            assertBundleData(loan.policy());
+            loan.policy().data("{ \"roles\" : { \"bob\" : \"admin\" } }");
+        }
+
+        try (var loan = pool.borrow()) {
+            assertBundleData(loan.policy());
+        }
+
+        pool.close();
+    }
+
+    @Test
+    public void bundleWithoutPolicyIsRejected() throws Exception {
+        var bundle = compiledFolder.resolve("no-policy-bundle.tar.gz");
+        var tar =
+                new ProcessBuilder(
+                                List.of(
+                                        "tar",
+                                        "-czf",
+                                        bundle.toFile().getAbsolutePath(),
+                                        "-C",
+                                        OpaCli.baseSourceFolder
+                                                .resolve("bundle")
+                                                .toFile()
+                                                .getAbsolutePath(),
+                                        "data.json"))
+                        .inheritIO()
+                        .start();
+        tar.waitFor(10, TimeUnit.SECONDS);
+
+        assertThrows(IllegalArgumentException.class, () -> OpaPolicy.builder().withBundle(bundle));
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> OpaPolicy.builder().withBundle(new ByteArrayInputStream(new byte[] {1, 2})));
+    }
+}
@@ -1,13 +1,16 @@
 package com.styra.opa.wasm;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.fasterxml.jackson.databind.node.TextNode;
+import java.nio.file.Path;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 public class OpaCustomBuiltinsTest {
+    static Path wasmFile;
     static OpaPolicy policy;
 
     static OpaBuiltin.Builtin[] customBuiltins =
@@ -51,21 +54,38 @@ public class OpaCustomBuiltinsTest {
 
     @BeforeAll
     public static void beforeAll() throws Exception {
-        policy =
-                OpaPolicy.builder()
-                        .addBuiltins(customBuiltins)
-                        .withPolicy(
-                                OpaCli.compile(
-                                                "custom-builtins",
-                                                true,
-                                                "custom_builtins/zero_arg",
-                                                "custom_builtins/one_arg",
-                                                "custom_builtins/two_arg",
-                                                "custom_builtins/three_arg",
-                                                "custom_builtins/four_arg",
-                                                "custom_builtins/valid_json")
-                                        .resolve("policy.wasm"))
-                        .build();
+        wasmFile =
+                OpaCli.compile(
+                                "custom-builtins",
+                                true,
+                                "custom_builtins/zero_arg",
+                                "custom_builtins/one_arg",
+                                "custom_builtins/two_arg",
+                                "custom_builtins/three_arg",
+                                "custom_builtins/four_arg",
+                                "custom_builtins/valid_json")
+                        .resolve("policy.wasm");
+        policy = OpaPolicy.builder().addBuiltins(customBuiltins).withPolicy(wasmFile).build();
+    }
+
+    @Test
+    public void missingBuiltinsFailAtModuleLoad() {
+        var exception =
+                assertThrows(
+                        IllegalArgumentException.class,
+                        () ->
+                                OpaPolicy.builder()
+                                        .withPolicy(wasmFile)
+                                        .withBuiltinsValidation()
+                                        .buildModule());
+        assertTrue(exception.getMessage().contains("custom.zeroArgBuiltin"));
+        assertTrue(exception.getMessage().contains("custom.fourArgBuiltin"));
+
+        // by default the failure is deferred to the call
+        var lenient = OpaPolicy.builder().withPolicy(wasmFile).build();
+        assertThrows(
+                RuntimeException.class,
+                () -> lenient.entrypoint("custom_builtins/zero_arg").evaluate());
     }
 
     @Test
@@ -83,6 +103,22 @@ public class OpaCustomBuiltinsTest {
         assertEquals("hello arg0", result.asText());
     }
 
+    @Test
+    public void largeResultsAreReadInChunks() {
+        var arg = "a".repeat(200_000);
+        var result =
+                Utils.getResult(
+                        policy.entrypoint("custom_builtins/one_arg")
+                                .evaluate("{ \"args\": [\"" + arg + "\"] }"));
+        assertEquals("hello " + arg, result.asText());
+
+        // parsed straight from the memory
+        var tree =
+                policy.entrypoint("custom_builtins/one_arg")
+                        .evaluateAsTree("{ \"args\": [\"" + arg + "\"] }");
+        assertEquals("hello " + arg, Utils.getResult(tree).asText());
+    }
+
     @Test
     public void shouldCallACustomTwoArgBuiltin() {
         var result =
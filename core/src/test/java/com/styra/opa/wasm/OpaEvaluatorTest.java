@@ -0,0 +1,144 @@
+package com.styra.opa.wasm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class OpaEvaluatorTest {
+    static Path wasmFile;
+
+    @BeforeAll
+    public static void beforeAll() throws Exception {
+        wasmFile = OpaCli.compile("base", "opa/wasm/test/allowed").resolve("policy.wasm");
+    }
+
+    private static OpaPolicyPool pool(int maxSize) {
+        var pool =
+                OpaPolicyPool.create(
+                        () -> OpaPolicy.builder().withPolicy(wasmFile).build(), maxSize);
+        pool.data("{ \"role\" : { \"alice\" : \"admin\" } }");
+        return pool;
+    }
+
+    @Test
+    public void evaluatesSynchronously() throws Exception {
+        var pool = pool(1);
+        var evaluator = OpaEvaluator.create(pool);
+
+        assertTrue(
+                Utils.getResult(
+                                evaluator.evaluate(
+                                        "opa/wasm/test/allowed", "{\"user\": \"alice\"}"))
+                        .asBoolean());
+        assertFalse(
+                Utils.getResult(evaluator.evaluate("opa/wasm/test/allowed", "{\"user\": \"bob\"}"))
+                        .asBoolean());
+
+        pool.close();
+    }
+
+    @Test
+    public void unknownEntrypointsDontDiscardTheInstances() throws Exception {
+        var created = new AtomicInteger();
+        var pool =
+                OpaPolicyPool.create(
+                        () -> {
+                            created.incrementAndGet();
+                            return OpaPolicy.builder().withPolicy(wasmFile).build();
+                        },
+                        1);
+        pool.data("{ \"role\" : { \"alice\" : \"admin\" } }");
+        var evaluator = OpaEvaluator.create(pool);
+
+        // the first time the instance is borrowed to list the entrypoints, then returned
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> evaluator.evaluate("unknown", "{\"user\": \"alice\"}"));
+        // then they are rejected without borrowing, even with the pool exhausted
+        try (var loan = pool.borrow()) {
+            var e =
+                    assertThrows(
+                            ExecutionException.class,
+                            () ->
+                                    evaluator
+                                            .evaluateAsync("unknown", "{\"user\": \"alice\"}")
+                                            .get(10, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+
+        assertTrue(
+                Utils.getResult(
+                                evaluator.evaluate(
+                                        "opa/wasm/test/allowed", "{\"user\": \"alice\"}"))
+                        .asBoolean());
+        assertEquals(1, created.get());
+
+        pool.close();
+    }
+
+    @Test
+    public void asyncEvaluationsAreBoundedByThePoolSize() throws Exception {
+        var poolSize = 2;
+        var pool = pool(poolSize);
+        var running = new AtomicInteger();
+        var maxRunning = new AtomicInteger();
+        var executor = Executors.newFixedThreadPool(8);
+        var evaluator =
+                OpaEvaluator.create(
+                        pool,
+                        task ->
+                                executor.execute(
+                                        () -> {
+                                            maxRunning.accumulateAndGet(
+                                                    running.incrementAndGet(), Math::max);
+                                            try {
+                                                task.run();
+                                            } finally {
+                                                running.decrementAndGet();
+                                            }
+                                        }));
+
+        var results = new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < 32; i++) {
+            results.add(evaluator.evaluateAsync("opa/wasm/test/allowed", "{\"user\": \"alice\"}"));
+        }
+        for (var result : results) {
+            assertTrue(Utils.getResult(result.get(30, TimeUnit.SECONDS)).asBoolean());
+        }
+        assertTrue(maxRunning.get() <= poolSize);
+
+        executor.shutdown();
+        pool.close();
+    }
+
+    @Test
+    public void cancelledEvaluationsGiveUpTheirPlace() throws Exception {
+        var pool = pool(1);
+        var evaluator = OpaEvaluator.create(pool);
+
+        var loan = pool.borrow();
+        var cancelled = evaluator.evaluateAsync("opa/wasm/test/allowed", "{\"user\": \"alice\"}");
+        cancelled.cancel(false);
+        loan.close();
+
+        // the instance is available again
+        pool.tryBorrow(Duration.ofSeconds(10)).orElseThrow().close();
+        var result = evaluator.evaluateAsync("opa/wasm/test/allowed", "{\"user\": \"alice\"}");
+        assertTrue(Utils.getResult(result.get(30, TimeUnit.SECONDS)).asBoolean());
+        assertTrue(cancelled.isCancelled());
+
+        pool.close();
+    }
+}
@@ -2,20 +2,29 @@ package com.styra.opa.wasm;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SubmissionPublisher;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
@@ -144,6 +153,744 @@ public class OpaPolicyPoolTest {
         pool.close();
     }
 
+    @Test
+    public void poolOwnedDataIsRetainedAcrossLoans() throws InterruptedException {
+        var pool = OpaPolicyPool.create(() -> OpaPolicy.builder().withPolicy(wasmFile).build(), 1);
+        pool.data("{ \"role\" : { \"alice\" : \"admin\" } }");
+
+        try (var loan = pool.borrow()) {
+            assertTrue(
+                    Utils.getResult(loan.policy().evaluate("{\"user\": \"alice\"}")).asBoolean());
+        }
+
+        // the data is still loaded, only the input is needed
+        try (var loan = pool.borrow()) {
+            loan.policy().input("{\"user\": \"alice\"}");
+            assertTrue(Utils.getResult(loan.policy().evaluate()).asBoolean());
+
+            // the borrower can load its own data ...
+            loan.policy().data("{ \"role\" : { \"bob\" : \"admin\" } }");
+            assertFalse(
+                    Utils.getResult(loan.policy().evaluate("{\"user\": \"alice\"}")).asBoolean());
+        }
+
+        // ... but the next borrower gets the pool data back
+        try (var loan = pool.borrow()) {
+            assertTrue(
+                    Utils.getResult(loan.policy().evaluate("{\"user\": \"alice\"}")).asBoolean());
+        }
+
+        // new data is picked up on the next borrow
+        pool.data("{ \"role\" : { \"bob\" : \"admin\" } }");
+        try (var loan = pool.borrow()) {
+            assertFalse(
+                    Utils.getResult(loan.policy().evaluate("{\"user\": \"alice\"}")).asBoolean());
+            assertTrue(Utils.getResult(loan.policy().evaluate("{\"user\": \"bob\"}")).asBoolean());
+        }
+
+        pool.close();
+    }
+
+    @Test
+    public void instancesFailingToLoadTheDataAreDropped() throws Exception {
+        var pool = OpaPolicyPool.create(() -> OpaPolicy.builder().withPolicy(wasmFile).build(), 1);
+        pool.data("{ \"role\" : { \"alice\" : \"admin\" } }");
+        pool.borrow().close();
+        assertEquals(1, pool.idle());
+        assertTrue(pool.totalPages() > 0);
+
+        // can't be serialized to Json
+        pool.data(new Object());
+        assertThrows(RuntimeException.class, pool::borrow);
+        assertEquals(0, pool.idle());
+        assertEquals(0, pool.totalPages());
+        // the same with a new instance
+        assertThrows(RuntimeException.class, pool::borrow);
+        assertEquals(0, pool.totalPages());
+
+        pool.data("{ \"role\" : { \"alice\" : \"admin\" } }");
+        try (var loan = pool.borrow()) {
+            assertTrue(
+                    Utils.getResult(loan.policy().evaluate("{\"user\": \"alice\"}")).asBoolean());
+            assertTrue(pool.totalPages() > 0);
+        }
+
+        pool.close();
+    }
+
+    @Test
+    public void prewarmCreatesInstancesAhead() throws Exception {
+        var created = new AtomicInteger();
+        var pool =
+                OpaPolicyPool.create(
+                        () -> {
+                            created.incrementAndGet();
+                            return OpaPolicy.builder().withPolicy(wasmFile).build();
+                        },
+                        4);
+        pool.data("{ \"role\" : { \"alice\" : \"admin\" } }");
+
+        pool.prewarm(3).get(30, TimeUnit.SECONDS);
+        assertEquals(3, created.get());
+
+        // never beyond the maximum size
+        pool.prewarm(10).get(30, TimeUnit.SECONDS);
+        assertEquals(4, created.get());
+
+        try (var loan = pool.borrow()) {
+            assertTrue(
+                    Utils.getResult(loan.policy().evaluate("{\"user\": \"alice\"}")).asBoolean());
+        }
+        assertEquals(4, created.get());
+
+        pool.close();
+    }
+
+    @Test
+    public void minIdleAndDiscardedInstancesAreRefilled() throws InterruptedException {
+        var created = new AtomicInteger();
+        var warmedUp = new AtomicInteger();
+        var pool =
+                OpaPolicyPool.builder(
+                                () -> {
+                                    created.incrementAndGet();
+                                    return OpaPolicy.builder().withPolicy(wasmFile).build();
+                                },
+                                4)
+                        .withMinIdle(2)
+                        .withExecutor(Runnable::run)
+                        .withWarmup(
+                                policy -> {
+                                    policy.data("{ \"role\" : { \"alice\" : \"admin\" } }")
+                                            .evaluate("{\"user\": \"alice\"}");
+                                    warmedUp.incrementAndGet();
+                                })
+                        .build();
+        assertEquals(2, created.get());
+
+        // the borrowed instance is replaced to keep 2 idle ones
+        var loan = pool.borrow();
+        assertEquals(3, created.get());
+
+        loan.policy().data("{ \"role\" : { \"alice\" : \"admin\" } }");
+        assertTrue(Utils.getResult(loan.policy().evaluate("{\"user\": \"alice\"}")).asBoolean());
+        loan.discard();
+
+        // the 2 idle instances are still there, the discarded one isn't replaced
+        assertEquals(3, created.get());
+        assertEquals(3, warmedUp.get());
+        assertEquals(2, pool.idle());
+
+        // the warm-up left no state behind
+        try (var other = pool.borrow()) {
+            assertFalse(
+                    Utils.getResult(other.policy().evaluate("{\"user\": \"alice\"}")).asBoolean());
+        }
+
+        pool.close();
+    }
+
+    @Test
+    public void discardedInstancesAreRecreatedOnDemandWithoutMinIdle() throws Exception {
+        var created = new AtomicInteger();
+        var pool =
+                OpaPolicyPool.builder(
+                                () -> {
+                                    created.incrementAndGet();
+                                    return OpaPolicy.builder().withPolicy(wasmFile).build();
+                                },
+                                2)
+                        .withExecutor(Runnable::run)
+                        .build();
+
+        pool.borrow().discard();
+        assertEquals(1, created.get());
+        assertEquals(0, pool.idle());
+
+        pool.borrow().close();
+        assertEquals(2, created.get());
+        assertEquals(1, pool.idle());
+
+        pool.close();
+    }
+
+    @Test
+    public void swapSwitchesLoansToTheNewGeneration() throws Exception {
+        var created = new AtomicInteger();
+        var pool =
+                OpaPolicyPool.builder(() -> OpaPolicy.builder().withPolicy(wasmFile).build(), 2)
+                        .withExecutor(Runnable::run)
+                        .build();
+        pool.data("{ \"role\" : { \"alice\" : \"admin\" } }");
+        assertEquals(0, pool.generation());
+
+        var outstanding = pool.borrow();
+        assertEquals(0, outstanding.generation());
+
+        var module = OpaPolicy.builder().withPolicy(wasmFile).buildModule();
+        long next =
+                pool.swap(
+                                () -> {
+                                    created.incrementAndGet();
+                                    return module.instantiate();
+                                })
+                        .get(30, TimeUnit.SECONDS);
+        assertEquals(1, next);
+        assertEquals(1, pool.generation());
+        assertEquals(1, created.get());
+
+        // the outstanding loan still works and drains to the previous generation
+        assertTrue(
+                Utils.getResult(outstanding.policy().evaluate("{\"user\": \"alice\"}"))
+                        .asBoolean());
+        outstanding.close();
+
+        try (var first = pool.borrow();
+                var second = pool.borrow()) {
+            assertEquals(1, first.generation());
+            assertEquals(1, second.generation());
+            assertSame(module, first.policy().module());
+            assertSame(module, second.policy().module());
+            assertTrue(
+                    Utils.getResult(first.policy().evaluate("{\"user\": \"alice\"}")).asBoolean());
+        }
+
+        // a failed swap leaves the current generation in place
+        var failed =
+                pool.swap(
+                        () -> {
+                            throw new IllegalStateException("broken policy");
+                        });
+        assertThrows(ExecutionException.class, () -> failed.get(30, TimeUnit.SECONDS));
+        assertEquals(1, pool.generation());
+
+        pool.close();
+    }
+
+    @Test
+    public void overlappingSwapsAreInstalledInOrder() throws Exception {
+        // the slow factory doesn't hold up the other swap
+        var executor = Executors.newCachedThreadPool();
+        var pool =
+                OpaPolicyPool.builder(() -> OpaPolicy.builder().withPolicy(wasmFile).build(), 2)
+                        .withExecutor(executor)
+                        .build();
+        var module = OpaPolicy.builder().withPolicy(wasmFile).buildModule();
+
+        var slow = new CountDownLatch(1);
+        var first =
+                pool.swap(
+                        () -> {
+                            try {
+                                slow.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            return module.instantiate();
+                        });
+        var second = pool.swap(module::instantiate);
+        assertEquals(2, second.get(30, TimeUnit.SECONDS));
+        assertEquals(2, pool.generation());
+
+        // the earlier swap completes last and doesn't roll the policy back
+        slow.countDown();
+        var e = assertThrows(ExecutionException.class, () -> first.get(30, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+        assertEquals(2, pool.generation());
+        try (var loan = pool.borrow()) {
+            assertEquals(2, loan.generation());
+        }
+
+        pool.close();
+        executor.shutdown();
+    }
+
+    @Test
+    public void swapsFailWhenThePoolIsClosedMeanwhile() throws Exception {
+        var executor = Executors.newCachedThreadPool();
+        var pool =
+                OpaPolicyPool.builder(() -> OpaPolicy.builder().withPolicy(wasmFile).build(), 2)
+                        .withExecutor(executor)
+                        .build();
+        var module = OpaPolicy.builder().withPolicy(wasmFile).buildModule();
+
+        var slow = new CountDownLatch(1);
+        var swap =
+                pool.swap(
+                        () -> {
+                            try {
+                                slow.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            return module.instantiate();
+                        });
+        pool.close();
+        slow.countDown();
+
+        var e = assertThrows(ExecutionException.class, () -> swap.get(30, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+        assertEquals(0, pool.generation());
+        assertEquals(0, pool.totalPages());
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void stripedPoolReusesInstancesAcrossThreads() throws Exception {
+        int poolSize = 4;
+        int tasks = 16;
+        var created = new AtomicInteger();
+        var pool =
+                OpaPolicyPool.builder(
+                                () -> {
+                                    created.incrementAndGet();
+                                    return OpaPolicy.builder().withPolicy(wasmFile).build();
+                                },
+                                poolSize)
+                        .withStripes(poolSize)
+                        .build();
+        pool.data("{ \"role\" : { \"alice\" : \"admin\" } }");
+
+        ExecutorService executor = Executors.newFixedThreadPool(tasks);
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < tasks * 4; i++) {
+            futures.add(
+                    executor.submit(
+                            () -> {
+                                try (var loan = pool.borrow()) {
+                                    return Utils.getResult(
+                                                    loan.policy().evaluate("{\"user\": \"alice\"}"))
+                                            .asBoolean();
+                                }
+                            }));
+        }
+        for (var f : futures) {
+            assertTrue(f.get(30, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        pool.close();
+
+        // never more instances than the pool size, they are shared between the stripes
+        assertTrue(created.get() <= poolSize, "created: " + created.get());
+    }
+
+    @Test
+    public void tryBorrowTimesOutWhenExhausted() throws Exception {
+        var pool = OpaPolicyPool.create(() -> OpaPolicy.builder().withPolicy(wasmFile).build(), 1);
+
+        try (var loan = pool.borrow()) {
+            assertTrue(pool.tryBorrow(Duration.ofMillis(50)).isEmpty());
+            assertTrue(pool.tryBorrow(Duration.ZERO).isEmpty());
+        }
+
+        var loan = pool.tryBorrow(Duration.ofMillis(50));
+        assertTrue(loan.isPresent());
+        loan.get().close();
+
+        pool.close();
+    }
+
+    @Test
+    public void asyncBorrowersAreServedInOrder() throws Exception {
+        var pool = OpaPolicyPool.create(() -> OpaPolicy.builder().withPolicy(wasmFile).build(), 1);
+
+        var first = pool.borrow();
+        var second = pool.borrowAsync();
+        var cancelled = pool.borrowAsync();
+        var third = pool.borrowAsync();
+        assertFalse(second.isDone());
+        cancelled.cancel(false);
+
+        var order = Collections.synchronizedList(new ArrayList<Integer>());
+        second.thenAccept(
+                loan -> {
+                    order.add(2);
+                    loan.close();
+                });
+        third.thenAccept(
+                loan -> {
+                    order.add(3);
+                    loan.close();
+                });
+        first.close();
+
+        third.get(10, TimeUnit.SECONDS);
+        assertEquals(List.of(2, 3), order);
+
+        // and the permit is back to the pool
+        pool.tryBorrow(Duration.ofSeconds(10)).orElseThrow().close();
+        pool.close();
+    }
+
+    @Test
+    public void waitersBeyondMaxAreRejected() throws Exception {
+        var pool =
+                OpaPolicyPool.builder(() -> OpaPolicy.builder().withPolicy(wasmFile).build(), 1)
+                        .withMaxWaiters(1)
+                        .build();
+
+        var loan = pool.borrow();
+        var waiting = pool.borrowAsync();
+        var rejected = pool.borrowAsync();
+
+        var error = assertThrows(ExecutionException.class, rejected::get);
+        assertTrue(error.getCause() instanceof RejectedExecutionException);
+        assertThrows(RejectedExecutionException.class, pool::borrow);
+
+        // a cancelled waiter frees its place
+        waiting.cancel(false);
+        var next = pool.borrowAsync();
+        loan.close();
+        next.get(10, TimeUnit.SECONDS).close();
+
+        // pending waiters fail when the pool is closed
+        loan = pool.borrow();
+        var pending = pool.borrowAsync();
+        pool.close();
+        error = assertThrows(ExecutionException.class, pending::get);
+        assertTrue(error.getCause() instanceof IllegalStateException);
+        loan.close();
+    }
+
+    @Test
+    public void instancesAreReplacedAfterMaxEvaluations() throws Exception {
+        var metrics = new PoolMetricsRecorder();
+        var pool =
+                OpaPolicyPool.builder(() -> OpaPolicy.builder().withPolicy(wasmFile).build(), 1)
+                        .withMaxEvaluations(2)
+                        .withMetrics(metrics)
+                        .build();
+        pool.data("{ \"role\" : { \"alice\" : \"admin\" } }");
+
+        OpaPolicy first;
+        try (var loan = pool.borrow()) {
+            first = loan.policy();
+            first.evaluate("{\"user\": \"alice\"}");
+        }
+        try (var loan = pool.borrow()) {
+            assertSame(first, loan.policy());
+            assertTrue(Utils.getResult(first.evaluate("{\"user\": \"alice\"}")).asBoolean());
+        }
+        try (var loan = pool.borrow()) {
+            assertFalse(first == loan.policy());
+            assertTrue(
+                    Utils.getResult(loan.policy().evaluate("{\"user\": \"alice\"}")).asBoolean());
+        }
+        assertEquals(1, metrics.evictions());
+
+        pool.close();
+    }
+
+    @Test
+    public void grownInstancesAreReplaced() throws Exception {
+        var pool =
+                OpaPolicyPool.builder(() -> OpaPolicy.builder().withPolicy(wasmFile).build(), 1)
+                        .withMaxPages(64)
+                        .build();
+        var hugeInput = "{\"user\": \"" + "a".repeat(8 * 1024 * 1024) + "\"}";
+
+        OpaPolicy grown;
+        try (var loan = pool.borrow()) {
+            grown = loan.policy();
+            var initialPages = pool.totalPages();
+            assertTrue(initialPages > 0 && initialPages <= 64);
+            grown.evaluate(hugeInput);
+            assertTrue(grown.pages() > 64);
+        }
+
+        try (var loan = pool.borrow()) {
+            assertFalse(grown == loan.policy());
+            assertTrue(pool.totalPages() <= 64);
+        }
+
+        pool.close();
+    }
+
+    @Test
+    public void idleInstancesAreDroppedFirstOverMaxTotalPages() throws Exception {
+        long pages;
+        var sizing =
+                OpaPolicyPool.create(() -> OpaPolicy.builder().withPolicy(wasmFile).build(), 1);
+        sizing.data("{ \"role\" : { \"alice\" : \"admin\" } }");
+        try (var loan = sizing.borrow()) {
+            pages = sizing.totalPages();
+        }
+        sizing.close();
+
+        var created = new AtomicInteger();
+        var metrics = new PoolMetricsRecorder();
+        var pool =
+                OpaPolicyPool.builder(
+                                () -> {
+                                    created.incrementAndGet();
+                                    return OpaPolicy.builder().withPolicy(wasmFile).build();
+                                },
+                                3)
+                        .withMaxTotalPages(2 * pages)
+                        .withExecutor(Runnable::run)
+                        .withMetrics(metrics)
+                        .build();
+        pool.data("{ \"role\" : { \"alice\" : \"admin\" } }");
+
+        var loan = pool.borrow();
+        var returned = loan.policy();
+        pool.prewarm(2).get(30, TimeUnit.SECONDS);
+        assertEquals(3 * pages, pool.totalPages());
+
+        // an idle instance makes room for the returned one, nothing is recreated
+        loan.close();
+        assertEquals(1, metrics.evictions());
+        assertEquals(2 * pages, pool.totalPages());
+        assertEquals(2, pool.idle());
+        try (var again = pool.borrow()) {
+            assertSame(returned, again.policy());
+        }
+        assertEquals(3, created.get());
+
+        // with no idle instance left to drop, the returned one goes
+        var first = pool.borrow();
+        var second = pool.borrow();
+        var third = pool.borrow();
+        assertEquals(3 * pages, pool.totalPages());
+        first.close();
+        assertEquals(2, metrics.evictions());
+        second.close();
+        third.close();
+        assertEquals(2, pool.idle());
+        assertEquals(4, created.get());
+
+        pool.close();
+    }
+
+    @Test
+    public void idleInstancesExpire() throws Exception {
+        var pool =
+                OpaPolicyPool.builder(() -> OpaPolicy.builder().withPolicy(wasmFile).build(), 2)
+                        .withIdleTimeout(Duration.ofMillis(50))
+                        .build();
+        pool.prewarm(2).get(30, TimeUnit.SECONDS);
+        assertEquals(2, pool.idle());
+
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (pool.idle() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, pool.idle());
+        assertEquals(0, pool.totalPages());
+
+        // and they are created again on demand
+        try (var loan = pool.borrow()) {
+            assertTrue(
+                    Utils.getResult(
+                                    loan.policy()
+                                            .data("{ \"role\" : { \"alice\" : \"admin\" } }")
+                                            .evaluate("{\"user\": \"alice\"}"))
+                            .asBoolean());
+        }
+        pool.close();
+    }
+
+    // requests "chunk" results at a time, once the previous ones have been received
+    private static class Collector implements Flow.Subscriber<String> {
+        private final int chunk;
+        private final List<String> results = Collections.synchronizedList(new ArrayList<>());
+        private final CompletableFuture<List<String>> done = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+        private int received;
+
+        private Collector(int chunk) {
+            this.chunk = chunk;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(chunk);
+        }
+
+        @Override
+        public void onNext(String item) {
+            results.add(item);
+            if (++received % chunk == 0) {
+                subscription.request(chunk);
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            done.completeExceptionally(error);
+        }
+
+        @Override
+        public void onComplete() {
+            done.complete(results);
+        }
+    }
+
+    @Test
+    public void streamsAreEvaluatedInOrderWithBackPressure() throws Exception {
+        var pool = OpaPolicyPool.create(() -> OpaPolicy.builder().withPolicy(wasmFile).build(), 4);
+        pool.data("{ \"role\" : { \"alice\" : \"admin\" } }");
+        var inputs = new SubmissionPublisher<String>();
+        var collector = new Collector(3);
+
+        pool.evaluate(
+                        inputs,
+                        OpaPolicyPool.StreamOptions.builder()
+                                .withEntrypoint("opa/wasm/test/allowed")
+                                .withBatchSize(8)
+                                .build())
+                .subscribe(collector);
+        for (int i = 0; i < 500; i++) {
+            inputs.submit((i % 2 == 0) ? "{\"user\": \"alice\"}" : "{\"user\": \"bob\"}");
+        }
+        inputs.close();
+
+        var results = collector.done.get(30, TimeUnit.SECONDS);
+        assertEquals(500, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i % 2 == 0, Utils.getResult(results.get(i)).asBoolean());
+        }
+        pool.close();
+    }
+
+    @Test
+    public void unorderedStreamsStopAtTheFirstError() throws Exception {
+        var pool = OpaPolicyPool.create(() -> OpaPolicy.builder().withPolicy(wasmFile).build(), 2);
+        pool.data("{ \"role\" : { \"alice\" : \"admin\" } }");
+        var options = OpaPolicyPool.StreamOptions.builder().withParallelism(2).withOrdered(false);
+
+        var inputs = new SubmissionPublisher<String>();
+        var collector = new Collector(Integer.MAX_VALUE);
+        pool.evaluate(inputs, options.build()).subscribe(collector);
+        for (int i = 0; i < 100; i++) {
+            inputs.submit("{\"user\": \"alice\"}");
+        }
+        inputs.close();
+        var results = collector.done.get(30, TimeUnit.SECONDS);
+        assertEquals(100, results.size());
+        for (var result : results) {
+            assertTrue(Utils.getResult(result).asBoolean());
+        }
+
+        // inputs that can't be serialized to Json
+        var failing = new SubmissionPublisher<Object>();
+        var failed = new Collector(Integer.MAX_VALUE);
+        pool.evaluate(failing, options.build()).subscribe(failed);
+        for (int i = 0; i < 100; i++) {
+            failing.submit(new Object());
+        }
+        failing.close();
+        var error =
+                assertThrows(ExecutionException.class, () -> failed.done.get(30, TimeUnit.SECONDS));
+        assertTrue(error.getCause() instanceof RuntimeException);
+        assertTrue(failed.results.isEmpty());
+
+        // the instances are back in the pool
+        pool.tryBorrow(Duration.ofSeconds(10)).orElseThrow().close();
+        pool.close();
+    }
+
+    @Test
+    public void cancelledStreamsLeaveThePoolQueue() throws Exception {
+        var pool = OpaPolicyPool.create(() -> OpaPolicy.builder().withPolicy(wasmFile).build(), 1);
+        pool.data("{ \"role\" : { \"alice\" : \"admin\" } }");
+
+        var inputs = new SubmissionPublisher<String>();
+        var collector = new Collector(Integer.MAX_VALUE);
+        try (var loan = pool.borrow()) {
+            pool.evaluate(inputs).subscribe(collector);
+            inputs.submit("{\"user\": \"alice\"}");
+            while (pool.waiting() == 0) {
+                Thread.sleep(10);
+            }
+            collector.subscription.cancel();
+            assertEquals(0, pool.waiting());
+        }
+        assertEquals(1, pool.idle());
+        pool.close();
+    }
+
+    @Test
+    public void throwingSubscribersCancelTheStream() throws Exception {
+        var pool = OpaPolicyPool.create(() -> OpaPolicy.builder().withPolicy(wasmFile).build(), 1);
+        pool.data("{ \"role\" : { \"alice\" : \"admin\" } }");
+
+        var inputs = new SubmissionPublisher<String>();
+        var received = new AtomicInteger();
+        pool.evaluate(inputs)
+                .subscribe(
+                        new Collector(Integer.MAX_VALUE) {
+                            @Override
+                            public void onNext(String item) {
+                                received.incrementAndGet();
+                                throw new IllegalStateException("broken subscriber");
+                            }
+                        });
+        for (int i = 0; i < 10; i++) {
+            inputs.submit("{\"user\": \"alice\"}");
+        }
+        // the inputs are no longer requested once the subscriber has thrown
+        for (int i = 0; i < 100 && inputs.getNumberOfSubscribers() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, inputs.getNumberOfSubscribers());
+        assertEquals(1, received.get());
+
+        // the instance is back in the pool
+        pool.tryBorrow(Duration.ofSeconds(10)).orElseThrow().close();
+        pool.close();
+    }
+
+    @Test
+    public void unknownEntrypointsFailTheSubscription() throws Exception {
+        var metrics = new PoolMetricsRecorder();
+        var pool =
+                OpaPolicyPool.builder(() -> OpaPolicy.builder().withPolicy(wasmFile).build(), 1)
+                        .withMetrics(metrics)
+                        .build();
+        pool.data("{ \"role\" : { \"alice\" : \"admin\" } }");
+        var options = OpaPolicyPool.StreamOptions.builder().withEntrypoint("not/defined").build();
+
+        // before any instance exists the first batch finds out, the instance is kept
+        var inputs = new SubmissionPublisher<String>();
+        var first = new Collector(Integer.MAX_VALUE);
+        pool.evaluate(inputs, options).subscribe(first);
+        inputs.submit("{\"user\": \"alice\"}");
+        inputs.close();
+        var error =
+                assertThrows(ExecutionException.class, () -> first.done.get(30, TimeUnit.SECONDS));
+        assertTrue(error.getCause() instanceof IllegalArgumentException);
+        assertEquals(1, pool.idle());
+
+        // then the subscription fails right away, even with the pool exhausted
+        try (var loan = pool.borrow()) {
+            var rejected = new Collector(Integer.MAX_VALUE);
+            pool.evaluate(new SubmissionPublisher<String>(), options).subscribe(rejected);
+            error =
+                    assertThrows(
+                            ExecutionException.class,
+                            () -> rejected.done.get(10, TimeUnit.SECONDS));
+            assertTrue(error.getCause() instanceof IllegalArgumentException);
+        }
+        assertEquals(1, metrics.creation().count());
+        assertEquals(0, metrics.discards());
+
+        pool.close();
+    }
+
+    @Test
+    public void invalidMinIdleThrows() {
+        assertThrows(
+                IllegalArgumentException.class,
+                () ->
+                        OpaPolicyPool.builder(
+                                        () -> OpaPolicy.builder().withPolicy(wasmFile).build(), 2)
+                                .withMinIdle(3)
+                                .build());
+    }
+
     @Test
     public void borrowAfterCloseThrows() {
         var pool = OpaPolicyPool.create(() -> OpaPolicy.builder().withPolicy(wasmFile).build(), 2);
@@ -0,0 +1,179 @@
+package com.styra.opa.wasm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class OpaPolicyRegistryTest {
+    static byte[] wasm;
+
+    @BeforeAll
+    public static void beforeAll() throws Exception {
+        wasm =
+                Files.readAllBytes(
+                        OpaCli.compile("base", "opa/wasm/test/allowed").resolve("policy.wasm"));
+    }
+
+    private static boolean allowed(OpaPolicyRegistry<String> registry, String tenant, String user)
+            throws InterruptedException {
+        try (var loan = registry.borrow(tenant)) {
+            loan.policy().data("{ \"role\" : { \"alice\" : \"admin\" } }");
+            return Utils.getResult(loan.policy().evaluate("{\"user\": \"" + user + "\"}"))
+                    .asBoolean();
+        }
+    }
+
+    @Test
+    public void identicalPoliciesShareTheirModule() throws Exception {
+        var loads = new ConcurrentHashMap<String, AtomicInteger>();
+        var compilations = new AtomicInteger();
+        var registry =
+                OpaPolicyRegistry.<String>builder(
+                                tenant -> {
+                                    loads.computeIfAbsent(tenant, t -> new AtomicInteger())
+                                            .incrementAndGet();
+                                    return wasm.clone();
+                                })
+                        .withModuleFactory(
+                                bytes -> {
+                                    compilations.incrementAndGet();
+                                    return OpaPolicy.builder().withPolicy(bytes).buildModule();
+                                })
+                        .build();
+
+        assertTrue(allowed(registry, "tenant-1", "alice"));
+        assertFalse(allowed(registry, "tenant-2", "bob"));
+        assertTrue(allowed(registry, "tenant-1", "alice"));
+
+        assertEquals(2, registry.size());
+        assertEquals(1, registry.modules());
+        assertEquals(wasm.length, registry.moduleBytes());
+        assertEquals(1, compilations.get());
+        assertEquals(1, loads.get("tenant-1").get());
+        assertSame(registry.pool("tenant-1"), registry.pool("tenant-1"));
+
+        // the module is released with the last key using it
+        registry.invalidate("tenant-1");
+        assertEquals(1, registry.modules());
+        registry.invalidate("tenant-2");
+        assertEquals(0, registry.modules());
+        assertEquals(0, registry.moduleBytes());
+
+        registry.close();
+    }
+
+    @Test
+    public void leastRecentlyUsedKeysAreEvicted() throws Exception {
+        var loads = new ConcurrentHashMap<String, AtomicInteger>();
+        var registry =
+                OpaPolicyRegistry.<String>builder(
+                                tenant -> {
+                                    loads.computeIfAbsent(tenant, t -> new AtomicInteger())
+                                            .incrementAndGet();
+                                    return wasm;
+                                })
+                        .withMaxEntries(2)
+                        .build();
+
+        var first = registry.pool("a");
+        registry.pool("b");
+        registry.pool("a");
+        registry.pool("c");
+
+        assertEquals(2, registry.size());
+        assertFalse(first.isClosed());
+        assertEquals(1, loads.get("b").get());
+
+        // loaded again on its next use
+        assertTrue(allowed(registry, "b", "alice"));
+        assertEquals(2, loads.get("b").get());
+        assertEquals(2, registry.size());
+
+        registry.close();
+        assertTrue(first.isClosed());
+        assertThrows(IllegalStateException.class, () -> registry.pool("a"));
+    }
+
+    @Test
+    public void leastRecentlyUsedModulesAreEvictedWithAllTheirKeys() throws Exception {
+        var loads = new ConcurrentHashMap<String, AtomicInteger>();
+        var registry =
+                OpaPolicyRegistry.<String>builder(
+                                tenant -> {
+                                    loads.computeIfAbsent(tenant, t -> new AtomicInteger())
+                                            .incrementAndGet();
+                                    // distinct binaries per module, of distinct sizes
+                                    return Arrays.copyOf(
+                                            wasm, wasm.length + tenant.charAt(0) - 'x');
+                                })
+                        .withModuleFactory(
+                                bytes -> OpaPolicy.builder().withPolicy(wasm).buildModule())
+                        .withMaxModuleBytes(2L * wasm.length + 3)
+                        .build();
+
+        registry.pool("x1");
+        registry.pool("y1");
+        registry.pool("x2");
+        assertEquals(2, registry.modules());
+
+        // "x1" is the least recently used key, but its module is still used by "x2"
+        registry.pool("z1");
+        assertEquals(3, registry.size());
+        assertEquals(2, registry.modules());
+        assertEquals(2L * wasm.length + 2, registry.moduleBytes());
+        assertEquals(1, loads.get("x1").get());
+
+        registry.pool("y1");
+        assertEquals(2, loads.get("y1").get());
+
+        registry.close();
+    }
+
+    @Test
+    public void loaderErrorsAreNotCached() throws Exception {
+        var attempts = new AtomicInteger();
+        var registry =
+                OpaPolicyRegistry.<String>builder(
+                                tenant -> {
+                                    if (attempts.incrementAndGet() == 1) {
+                                        throw new IllegalStateException("storage unavailable");
+                                    }
+                                    return wasm;
+                                })
+                        .build();
+
+        var error = assertThrows(IllegalStateException.class, () -> registry.pool("tenant"));
+        assertEquals("storage unavailable", error.getMessage());
+        assertEquals(0, registry.size());
+
+        assertTrue(allowed(registry, "tenant", "alice"));
+        registry.close();
+    }
+
+    @Test
+    public void idleInstancesAreDroppedOverTheMemoryBudget() throws Exception {
+        var registry =
+                OpaPolicyRegistry.<String>builder(tenant -> wasm)
+                        .withPoolFactory(module -> OpaPolicyPool.create(module::instantiate, 2))
+                        .withMaxTotalPages(1)
+                        .build();
+
+        assertTrue(allowed(registry, "a", "alice"));
+        assertTrue(registry.pool("a").idle() > 0);
+        // loading "b" reclaims the memory of "a", the least recently used
+        assertTrue(allowed(registry, "b", "alice"));
+        assertEquals(0, registry.pool("a").idle());
+        assertEquals(2, registry.size());
+
+        registry.close();
+    }
+}
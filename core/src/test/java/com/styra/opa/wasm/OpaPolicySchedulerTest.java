@@ -0,0 +1,184 @@
+package com.styra.opa.wasm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class OpaPolicySchedulerTest {
+    static Path wasmFile;
+
+    @BeforeAll
+    public static void beforeAll() throws Exception {
+        wasmFile = OpaCli.compile("base", "opa/wasm/test/allowed").resolve("policy.wasm");
+    }
+
+    private static OpaPolicyPool pool(int maxSize) {
+        var pool =
+                OpaPolicyPool.create(
+                        () -> OpaPolicy.builder().withPolicy(wasmFile).build(), maxSize);
+        pool.data("{ \"role\" : { \"alice\" : \"admin\" } }");
+        return pool;
+    }
+
+    @Test
+    public void lanesShareThePoolByWeight() throws Exception {
+        var pool = pool(1);
+        var scheduler =
+                OpaPolicyScheduler.builder(pool)
+                        .withLane("interactive", 3)
+                        .withLane("batch", 1)
+                        .build();
+
+        var held = scheduler.borrow("batch");
+        var served = new CopyOnWriteArrayList<String>();
+        var borrows = new ArrayList<CompletableFuture<?>>();
+        for (int i = 0; i < 6; i++) {
+            for (var lane : List.of("interactive", "batch")) {
+                borrows.add(
+                        scheduler
+                                .borrowAsync(lane)
+                                .thenAccept(
+                                        loan -> {
+                                            served.add(lane);
+                                            loan.close();
+                                        }));
+            }
+        }
+        assertEquals(6, scheduler.lane("interactive").waiting());
+        assertEquals(6, scheduler.lane("batch").waiting());
+        held.close();
+        for (var borrow : borrows) {
+            borrow.get(30, TimeUnit.SECONDS);
+        }
+
+        // mostly interactive first, but the batch lane isn't starved
+        assertEquals(12, served.size());
+        var first = served.subList(0, 4);
+        assertTrue(first.stream().filter("interactive"::equals).count() >= 3, served.toString());
+        assertTrue(served.indexOf("batch") < served.lastIndexOf("interactive"), served.toString());
+        assertEquals(0, scheduler.active());
+        assertEquals(6, scheduler.lane("interactive").waitTime().count());
+        assertEquals(7, scheduler.lane("batch").waitTime().count());
+
+        pool.close();
+    }
+
+    @Test
+    public void reservedSlotsAreKeptForTheirLane() throws Exception {
+        var pool = pool(2);
+        var scheduler =
+                OpaPolicyScheduler.builder(pool)
+                        .withLane("interactive", 1, 1, 0)
+                        .withLane("batch", 1)
+                        .build();
+
+        var batch = scheduler.borrow("batch");
+        assertTrue(scheduler.tryBorrow("batch", Duration.ofMillis(50)).isEmpty());
+        assertEquals(1, scheduler.lane("batch").timeouts());
+        assertEquals(0, scheduler.lane("batch").waiting());
+
+        try (var loan = scheduler.tryBorrow("interactive", Duration.ofSeconds(10)).orElseThrow()) {
+            assertTrue(
+                    Utils.getResult(loan.policy().evaluate("{\"user\": \"alice\"}")).asBoolean());
+            assertEquals(1, scheduler.lane("interactive").active());
+        }
+        batch.close();
+
+        // the whole pool is available to the lane with the reservation
+        var first = scheduler.borrow("interactive");
+        var second = scheduler.tryBorrow("interactive", Duration.ofSeconds(10)).orElseThrow();
+        assertEquals(2, scheduler.active());
+        first.close();
+        second.close();
+
+        pool.close();
+    }
+
+    @Test
+    public void lanesAreCappedToTheirMaxConcurrency() throws Exception {
+        var pool = pool(3);
+        var scheduler =
+                OpaPolicyScheduler.builder(pool)
+                        .withLane("interactive", 1)
+                        .withLane("batch", 1, 0, 1)
+                        .build();
+
+        var batch = scheduler.borrow("batch");
+        var waiting = scheduler.borrowAsync("batch");
+        assertEquals(1, scheduler.lane("batch").waiting());
+        // the capped lane doesn't hold up the others
+        var interactive = scheduler.tryBorrow("interactive", Duration.ofSeconds(10)).orElseThrow();
+        assertFalse(waiting.isDone());
+
+        batch.close();
+        waiting.get(10, TimeUnit.SECONDS).close();
+        interactive.close();
+        assertEquals(0, scheduler.active());
+        assertEquals(0, scheduler.lane("batch").waiting());
+
+        pool.close();
+    }
+
+    @Test
+    public void tenantsGetTheirOwnLane() throws Exception {
+        var pool = pool(2);
+        var scheduler = OpaPolicyScheduler.builder(pool).withDefaultLane(1, 1).build();
+
+        var acme = scheduler.borrow("acme");
+        assertTrue(scheduler.tryBorrow("acme", Duration.ofMillis(50)).isEmpty());
+        assertEquals(1, scheduler.lane("acme").active());
+        assertEquals(1, scheduler.lane("acme").timeouts());
+        scheduler.borrow("globex").close();
+        assertEquals(1, scheduler.lanes().size());
+
+        // idle tenant lanes are dropped, and created again on their next use
+        acme.close();
+        assertTrue(scheduler.lanes().isEmpty());
+        assertEquals(0, scheduler.lane("acme").timeouts());
+        assertTrue(scheduler.lanes().isEmpty());
+        scheduler.borrow("acme").close();
+        assertEquals(0, scheduler.active());
+
+        var strict = OpaPolicyScheduler.builder(pool).withLane("interactive", 1).build();
+        assertThrows(IllegalArgumentException.class, () -> strict.borrow("acme"));
+        assertThrows(
+                IllegalArgumentException.class,
+                () ->
+                        OpaPolicyScheduler.builder(pool)
+                                .withLane("interactive", 1, 2, 0)
+                                .withLane("batch", 1, 1, 0)
+                                .build());
+
+        pool.close();
+    }
+
+    @Test
+    public void closingFailsTheWaiters() throws Exception {
+        var pool = pool(1);
+        var scheduler = OpaPolicyScheduler.builder(pool).withLane("batch", 1).build();
+
+        var loan = scheduler.borrow("batch");
+        var waiting = scheduler.borrowAsync("batch");
+        scheduler.close();
+
+        var e = assertThrows(ExecutionException.class, () -> waiting.get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+        assertThrows(IllegalStateException.class, () -> scheduler.borrow("batch"));
+        loan.close();
+        assertEquals(0, scheduler.active());
+
+        pool.close();
+    }
+}
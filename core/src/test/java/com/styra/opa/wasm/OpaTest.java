@@ -4,7 +4,18 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import org.instancio.Instancio;
 import org.instancio.junit.Given;
 import org.instancio.junit.GivenProvider;
@@ -14,8 +25,14 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
+import run.endive.compiler.MachineFactoryCompiler;
 import run.endive.runtime.ByteBufferMemory;
+import run.endive.runtime.Instance;
+import run.endive.runtime.Machine;
+import run.endive.wasm.Parser;
+import run.endive.wasm.WasmModule;
 import run.endive.wasm.types.MemoryLimits;
 
 @ExtendWith(InstancioExtension.class)
@@ -109,6 +126,294 @@ public class OpaTest {
         Assertions.assertFalse(Utils.getResult(policy.evaluate()).asBoolean());
     }
 
+    @Test
+    public void fastEvaluationMatchesMultiStepEvaluation() throws Exception {
+        var data = "{ \"role\" : { \"alice\" : \"admin\", \"bob\" : \"user\" } }";
+        var fast = OpaPolicy.builder().withPolicy(wasmFile).build().data(data);
+        var slow =
+                OpaPolicy.builder().withPolicy(wasmFile).disableFastEvaluation().build().data(data);
+
+        for (var user : new String[] {"alice", "bob", "charlie"}) {
+            var input = "{\"user\": \"" + user + "\"}";
+            assertEquals(slow.evaluate(input), fast.evaluate(input));
+        }
+
+        // the multi-step API keeps working after a fast evaluation
+        fast.input("{\"user\": \"alice\"}");
+        Assertions.assertTrue(Utils.getResult(fast.evaluate()).asBoolean());
+        Assertions.assertFalse(Utils.getResult(fast.evaluate("{\"user\": \"bob\"}")).asBoolean());
+
+        // the one-shot input isn't kept for a following evaluate()
+        Assertions.assertThrows(IllegalStateException.class, fast::evaluate);
+        fast.input("{\"user\": \"alice\"}");
+        Assertions.assertTrue(Utils.getResult(fast.evaluate()).asBoolean());
+    }
+
+    @Test
+    public void bytesAPI() throws Exception {
+        var policy = OpaPolicy.builder().withPolicy(wasmFile).build();
+        policy.data(
+                "{ \"role\" : { \"alice\" : \"admin\", \"bob\" : \"user\" } }"
+                        .getBytes(StandardCharsets.UTF_8));
+
+        var alice = "{\"user\": \"alice\"}".getBytes(StandardCharsets.UTF_8);
+        var expected = policy.evaluate(alice);
+        Assertions.assertTrue(Utils.getResult(expected).asBoolean());
+        assertEquals(expected, new String(policy.evaluateToBytes(alice), StandardCharsets.UTF_8));
+
+        // only the remaining bytes of the buffer are used as input
+        var buffer = ByteBuffer.wrap("xx{\"user\": \"bob\"}".getBytes(StandardCharsets.UTF_8));
+        buffer.position(2);
+        Assertions.assertFalse(Utils.getResult(policy.evaluate(buffer)).asBoolean());
+        assertEquals(2, buffer.position());
+
+        var direct = ByteBuffer.allocateDirect(alice.length).put(alice).flip();
+        assertEquals(expected, policy.evaluate(direct));
+    }
+
+    @Test
+    public void objectsAPI() throws Exception {
+        var roles = new HashMap<String, String>();
+        roles.put("alice", "admin");
+        // big enough to need a few reallocations of the buffer in the Wasm memory
+        for (int i = 0; i < 10_000; i++) {
+            roles.put("user" + i, "user");
+        }
+
+        var fast = OpaPolicy.builder().withPolicy(wasmFile).build().data(Map.of("role", roles));
+        var slow =
+                OpaPolicy.builder()
+                        .withPolicy(wasmFile)
+                        .disableFastEvaluation()
+                        .build()
+                        .data(Map.of("role", roles));
+
+        for (var policy : new OpaPolicy[] {fast, slow}) {
+            Assertions.assertTrue(
+                    Utils.getResult(policy.evaluate(Map.of("user", "alice"))).asBoolean());
+            Assertions.assertFalse(
+                    Utils.getResult(policy.evaluate(Map.of("user", "user42"))).asBoolean());
+
+            policy.input(Map.of("user", "alice"));
+            Assertions.assertTrue(Utils.getResult(policy.evaluate()).asBoolean());
+
+            // Json documents are parsed, not serialized as Json strings
+            Object json = "{\"user\": \"alice\"}";
+            Assertions.assertTrue(Utils.getResult(policy.evaluate(json)).asBoolean());
+            Object bytes = "{\"user\": \"alice\"}".getBytes(StandardCharsets.UTF_8);
+            Assertions.assertTrue(Utils.getResult(policy.evaluate(bytes)).asBoolean());
+            policy.input(json);
+            Assertions.assertTrue(Utils.getResult(policy.evaluate()).asBoolean());
+        }
+    }
+
+    public static class Result {
+        public boolean result;
+    }
+
+    @Test
+    public void typedResultsAPI() throws Exception {
+        var data = "{ \"role\" : { \"alice\" : \"admin\", \"bob\" : \"user\" } }";
+        for (var builder :
+                new OpaPolicy.Builder[] {
+                    OpaPolicy.builder(), OpaPolicy.builder().disableFastEvaluation()
+                }) {
+            var policy = builder.withPolicy(wasmFile).build().data(data);
+
+            Assertions.assertTrue(
+                    Utils.getResult(policy.evaluateAsTree("{\"user\": \"alice\"}")).asBoolean());
+            Assertions.assertFalse(
+                    Utils.getResult(policy.evaluateAsTree(Map.of("user", "bob"))).asBoolean());
+
+            var results = policy.evaluateAs("{\"user\": \"alice\"}", Result[].class);
+            assertEquals(1, results.length);
+            Assertions.assertTrue(results[0].result);
+
+            policy.input("{\"user\": \"bob\"}");
+            Assertions.assertFalse(Utils.getResult(policy.evaluateAsTree()).asBoolean());
+            Assertions.assertFalse(policy.evaluateAs(Result[].class)[0].result);
+        }
+    }
+
+    @Test
+    public void batchAPI() throws Exception {
+        var data = "{ \"role\" : { \"alice\" : \"admin\", \"bob\" : \"user\" } }";
+        var inputs =
+                List.of(
+                        "{\"user\": \"alice\"}",
+                        "{\"user\": \"bob\"}".getBytes(StandardCharsets.UTF_8),
+                        Map.of("user", "alice"));
+        for (var builder :
+                new OpaPolicy.Builder[] {
+                    OpaPolicy.builder(), OpaPolicy.builder().disableFastEvaluation()
+                }) {
+            var policy = builder.withPolicy(wasmFile).build().data(data);
+
+            var results = policy.evaluateBatch(inputs);
+
+            assertEquals(3, results.size());
+            Assertions.assertTrue(Utils.getResult(results.get(0)).asBoolean());
+            Assertions.assertFalse(Utils.getResult(results.get(1)).asBoolean());
+            Assertions.assertTrue(Utils.getResult(results.get(2)).asBoolean());
+
+            var streamed = new ArrayList<String>();
+            policy.evaluateEach(inputs.iterator(), streamed::add);
+            assertEquals(results, streamed);
+
+            var raw = new ArrayList<String>();
+            policy.evaluateEachToBytes(
+                    inputs.iterator(), bytes -> raw.add(new String(bytes, StandardCharsets.UTF_8)));
+            assertEquals(results, raw);
+
+            // regular evaluations keep working after a batch
+            Assertions.assertFalse(
+                    Utils.getResult(policy.evaluate("{\"user\": \"bob\"}")).asBoolean());
+        }
+    }
+
+    @Test
+    public void moduleInstantiatesIndependentPolicies() throws Exception {
+        var module = OpaPolicy.builder().withPolicy(wasmFile).buildModule();
+
+        var first = module.instantiate().data("{ \"role\" : { \"alice\" : \"admin\" } }");
+        var second = module.instantiate().data("{ \"role\" : { \"bob\" : \"admin\" } }");
+
+        Assertions.assertTrue(Utils.getResult(first.evaluate("{\"user\": \"alice\"}")).asBoolean());
+        Assertions.assertFalse(
+                Utils.getResult(second.evaluate("{\"user\": \"alice\"}")).asBoolean());
+        Assertions.assertTrue(Utils.getResult(second.evaluate("{\"user\": \"bob\"}")).asBoolean());
+
+        Assertions.assertSame(module, first.module());
+        Assertions.assertSame(first.entrypoints(), second.entrypoints());
+    }
+
+    @Test
+    public void snapshotRestoresLoadedData() throws Exception {
+        var module = OpaPolicy.builder().withPolicy(wasmFile).buildModule();
+        var original = module.instantiate().data("{ \"role\" : { \"alice\" : \"admin\" } }");
+        var snapshot = original.snapshot();
+
+        var first = OpaPolicy.fromSnapshot(module, snapshot);
+        var second = OpaPolicy.fromSnapshot(module, snapshot);
+
+        Assertions.assertTrue(Utils.getResult(first.evaluate("{\"user\": \"alice\"}")).asBoolean());
+        Assertions.assertFalse(Utils.getResult(first.evaluate("{\"user\": \"bob\"}")).asBoolean());
+
+        // the copies are independent
+        first.data("{ \"role\" : { \"bob\" : \"admin\" } }");
+        Assertions.assertTrue(Utils.getResult(first.evaluate("{\"user\": \"bob\"}")).asBoolean());
+        Assertions.assertTrue(
+                Utils.getResult(second.evaluate("{\"user\": \"alice\"}")).asBoolean());
+
+        var otherModule = OpaPolicy.builder().withPolicy(wasmFile).buildModule();
+        Assertions.assertThrows(
+                IllegalArgumentException.class,
+                () -> OpaPolicy.fromSnapshot(otherModule, snapshot));
+    }
+
+    @Test
+    public void compilerCacheStoresCompiledPolicies(@TempDir Path cacheDir) throws Exception {
+        var stale = Files.createDirectories(cacheDir.resolve("opa-0.1_endive-0.1"));
+        var cache = CompilerCache.create(cacheDir, 1);
+        Assertions.assertFalse(Files.exists(stale));
+        // versioned against the jars, not against manifest entries that aren't set
+        Assertions.assertTrue(
+                cache.directory()
+                        .getFileName()
+                        .toString()
+                        .matches("opa-[0-9a-f]{16}_endive-[0-9a-f]{16}"),
+                cache.directory().toString());
+
+        for (int i = 0; i < 2; i++) {
+            var policy = OpaPolicy.builder().withPolicy(wasmFile).withCompilerCache(cache).build();
+            policy.data("{ \"role\" : { \"alice\" : \"admin\" } }");
+            Assertions.assertTrue(
+                    Utils.getResult(policy.evaluate("{\"user\": \"alice\"}")).asBoolean());
+            try (var entries = Files.list(cache.directory())) {
+                Assertions.assertEquals(1, entries.count());
+            }
+        }
+
+        // the least recently used entry is evicted
+        OpaPolicy.builder().withPolicy(issue69WasmFile).withCompilerCache(cache).build();
+        try (var entries = Files.list(cache.directory())) {
+            Assertions.assertEquals(1, entries.count());
+        }
+    }
+
+    @Test
+    public void precompiledModuleSkipsParsing() throws Exception {
+        var wasmModule = Parser.parse(Files.readAllBytes(wasmFile));
+        var policy =
+                OpaPolicy.builder()
+                        .withPrecompiled(
+                                wasmModule, MachineFactoryCompiler.builder(wasmModule).compile())
+                        .build();
+
+        policy.data("{ \"role\" : { \"alice\" : \"admin\" } }");
+        Assertions.assertTrue(
+                Utils.getResult(policy.evaluate("{\"user\": \"alice\"}")).asBoolean());
+        Assertions.assertSame(wasmModule, policy.module().wasmModule());
+    }
+
+    // shaped like the classes generated by the Endive compiler Maven plugin
+    public static final class PrecompiledPolicy {
+        static final AtomicInteger created = new AtomicInteger();
+        private static WasmModule module;
+        private static Function<Instance, Machine> factory;
+
+        public static WasmModule load() {
+            try {
+                module = Parser.parse(Files.readAllBytes(wasmFile));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            factory = MachineFactoryCompiler.builder(module).compile();
+            return module;
+        }
+
+        public static Machine create(Instance instance) {
+            created.incrementAndGet();
+            return factory.apply(instance);
+        }
+    }
+
+    public static final class NotStatic {
+        public WasmModule load() {
+            return null;
+        }
+
+        public Machine create(Instance instance) {
+            return null;
+        }
+    }
+
+    @Test
+    public void precompiledClass() throws Exception {
+        var module = OpaPolicy.builder().withPrecompiled(PrecompiledPolicy.class).buildModule();
+        var before = PrecompiledPolicy.created.get();
+        var first = module.instantiate();
+        var second = module.instantiate();
+        assertEquals(before + 2, PrecompiledPolicy.created.get());
+
+        first.data("{ \"role\" : { \"alice\" : \"admin\" } }");
+        second.data("{ \"role\" : { \"bob\" : \"admin\" } }");
+        Assertions.assertTrue(Utils.getResult(first.evaluate("{\"user\": \"alice\"}")).asBoolean());
+        Assertions.assertFalse(
+                Utils.getResult(second.evaluate("{\"user\": \"alice\"}")).asBoolean());
+        Assertions.assertSame(PrecompiledPolicy.module, module.wasmModule());
+    }
+
+    @Test
+    public void precompiledRejectsPlainClasses() {
+        Assertions.assertThrows(
+                IllegalArgumentException.class,
+                () -> OpaPolicy.builder().withPrecompiled(String.class));
+        Assertions.assertThrows(
+                IllegalArgumentException.class,
+                () -> OpaPolicy.builder().withPrecompiled(NotStatic.class));
+    }
+
     @Test
     public void issue69() throws Exception {
         var policy = OpaPolicy.builder().withPolicy(issue69WasmFile).build();
@@ -0,0 +1,75 @@
+package com.styra.opa.wasm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class PoolMetricsRecorderTest {
+    static Path wasmFile;
+
+    @BeforeAll
+    public static void beforeAll() throws Exception {
+        wasmFile = OpaCli.compile("base", "opa/wasm/test/allowed").resolve("policy.wasm");
+    }
+
+    @Test
+    public void histogramPercentilesAreWithinTheBucketError() {
+        var histogram = new PoolMetricsRecorder.Histogram();
+        assertEquals(0, histogram.valueAtPercentile(99));
+
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+
+        assertEquals(1000, histogram.count());
+        assertEquals(500_500_000L, histogram.sum());
+        var p50 = histogram.valueAtPercentile(50);
+        assertTrue(p50 >= 500_000 && p50 < 500_000 * 1.125, "p50: " + p50);
+        var p99 = histogram.valueAtPercentile(99);
+        assertTrue(p99 >= 990_000 && p99 < 990_000 * 1.125, "p99: " + p99);
+        assertTrue(histogram.valueAtPercentile(100) >= 1_000_000);
+        assertEquals(Long.MAX_VALUE, bucketOf(Long.MAX_VALUE));
+        assertThrows(IllegalArgumentException.class, () -> histogram.valueAtPercentile(101));
+    }
+
+    private static long bucketOf(long value) {
+        var histogram = new PoolMetricsRecorder.Histogram();
+        histogram.record(value);
+        return histogram.valueAtPercentile(100);
+    }
+
+    @Test
+    public void poolReportsLoansAndRejections() throws Exception {
+        var metrics = new PoolMetricsRecorder();
+        var pool =
+                OpaPolicyPool.builder(() -> OpaPolicy.builder().withPolicy(wasmFile).build(), 1)
+                        .withMaxWaiters(0)
+                        .withMetrics(metrics)
+                        .build();
+
+        try (var loan = pool.borrow()) {
+            assertEquals(1, pool.inUse());
+            assertEquals(0, pool.availablePermits());
+            assertThrows(RejectedExecutionException.class, pool::borrow);
+            assertTrue(pool.tryBorrow(Duration.ZERO).isEmpty());
+        }
+        assertEquals(1, pool.idle());
+        pool.borrow().discard();
+
+        assertEquals(2, metrics.borrowWait().count());
+        assertEquals(2, metrics.holdTime().count());
+        // the discarded instance may already be replaced in the background
+        assertTrue(metrics.creation().count() >= 1);
+        assertEquals(1, metrics.discards());
+        assertEquals(1, metrics.rejections());
+        assertEquals(1, metrics.timeouts());
+
+        pool.close();
+    }
+}
@@ -8,16 +8,18 @@ public class Utils {
     static ObjectMapper objectMapper = new ObjectMapper();
 
     public static JsonNode getResult(String jsonStr) {
-        JsonNode json;
         try {
-            json = objectMapper.readTree(jsonStr);
+            return getResult(objectMapper.readTree(jsonStr));
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
         }
+    }
+
+    public static JsonNode getResult(JsonNode json) {
         try {
             return json.elements().next().findValue("result");
         } catch (Exception e) {
-            throw new RuntimeException("Unexpected result: " + jsonStr);
+            throw new RuntimeException("Unexpected result: " + json);
         }
     }
 
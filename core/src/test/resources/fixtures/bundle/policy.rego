@@ -0,0 +1,13 @@
+package bundle
+
+import rego.v1
+
+default allowed := false
+
+allowed if {
+	data.roles[input.user] == "admin"
+}
+
+greeting := data.greeting
+
+max_items := data.settings.limits.max